@@ -0,0 +1,99 @@
+package main.java.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+
+/**
+ * Synthetic inputs for the benchmarks, generated in-process so the
+ * benchmarks run without any sample files.
+ */
+final class BenchmarkImages {
+
+	private BenchmarkImages() {
+	}
+
+	/**
+	 * Creates a cover filled with noise.
+	 *
+	 * @param size
+	 *            Size of the image as <code>WIDTHxHEIGHT</code>.
+	 * @param type
+	 *            Name of the image type, e.g. <code>TYPE_INT_RGB</code>.
+	 * @param seed
+	 *            Seed of the noise.
+	 * @return Generated image.
+	 */
+	static BufferedImage cover(String size, String type, long seed) {
+		String[] dims = size.split("x");
+		int width = Integer.parseInt(dims[0]);
+		int height = Integer.parseInt(dims[1]);
+		BufferedImage image = new BufferedImage(width, height, imageType(type));
+		Random random = new Random(seed);
+		if (image.getRaster().getDataBuffer() instanceof DataBufferInt) {
+			int[] data = ((DataBufferInt) image.getRaster().getDataBuffer())
+					.getData();
+			for (int i = 0; i < data.length; i++) {
+				data[i] = random.nextInt();
+			}
+		} else {
+			random.nextBytes(((DataBufferByte) image.getRaster()
+					.getDataBuffer()).getData());
+		}
+		return image;
+	}
+
+	/**
+	 * Creates a random payload.
+	 *
+	 * @param size
+	 *            Size of the payload in bytes.
+	 * @param seed
+	 *            Seed of the content.
+	 * @return Generated payload.
+	 */
+	static byte[] payload(int size, long seed) {
+		byte[] payload = new byte[size];
+		new Random(seed).nextBytes(payload);
+		return payload;
+	}
+
+	/**
+	 * Gives the number of message bytes that fit in the given cover.
+	 *
+	 * @param image
+	 *            Cover image.
+	 * @param layers
+	 *            Number of layers of the cover.
+	 * @param startBits
+	 *            The start range for writable bits.
+	 * @param endBits
+	 *            The end range for writable bits.
+	 * @return Capacity of the cover in bytes.
+	 */
+	static int capacity(BufferedImage image, int layers, int startBits,
+			int endBits) {
+		long bits = (long) image.getWidth() * image.getHeight() * layers
+				* (endBits - startBits + 1);
+		return (int) Math.min(Integer.MAX_VALUE, (bits - 32) / 8);
+	}
+
+	/**
+	 * Resolves the image type constant from its name.
+	 *
+	 * @param type
+	 *            Name of the constant in <code>BufferedImage</code>.
+	 * @return Value of the constant.
+	 */
+	private static int imageType(String type) {
+		if ("TYPE_INT_RGB".equals(type)) {
+			return BufferedImage.TYPE_INT_RGB;
+		} else if ("TYPE_3BYTE_BGR".equals(type)) {
+			return BufferedImage.TYPE_3BYTE_BGR;
+		} else if ("TYPE_BYTE_GRAY".equals(type)) {
+			return BufferedImage.TYPE_BYTE_GRAY;
+		}
+		throw new IllegalArgumentException("Unsupported image type: " + type);
+	}
+}
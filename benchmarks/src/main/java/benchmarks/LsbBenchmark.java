@@ -0,0 +1,115 @@
+package main.java.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.java.lsb.DecodingException;
+import main.java.lsb.EncodingException;
+import main.java.lsb.LsbImpl;
+import main.java.lsb.Message;
+import main.java.lsb.StegoImage;
+import main.java.lsb.StegoPackage;
+
+/**
+ * Encoding and decoding throughput of <code>LsbImpl</code> over synthetic
+ * covers.
+ * <p>
+ * Besides operations per second, every benchmark reports the
+ * <code>payloadBytes</code> counter, i.e. bytes of payload hidden or
+ * recovered per second (divide by 10^6 for MB/s).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx8g", "-Djava.awt.headless=true" })
+public class LsbBenchmark {
+
+	/**
+	 * Shared inputs: a cover of the given size and type, and a payload that
+	 * fills the given percentage of its capacity.
+	 */
+	@State(Scope.Benchmark)
+	public static class Cover {
+
+		@Param({ "640x480", "1920x1080", "4000x3000", "8192x6144" })
+		public String cover;
+
+		@Param({ "TYPE_INT_RGB", "TYPE_3BYTE_BGR", "TYPE_BYTE_GRAY" })
+		public String type;
+
+		/** Bit range as <code>startbits-endbits</code>. */
+		@Param({ "0-0", "0-1", "0-3" })
+		public String bits;
+
+		/** Payload size as a percentage of the cover capacity. */
+		@Param({ "10", "100" })
+		public int fill;
+
+		StegoImage image;
+		StegoImage stegoImage;
+		Message message;
+		LinkedHashMap<String, String> options;
+		int payloadSize;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException, EncodingException {
+			String[] range = bits.split("-");
+			options = new LinkedHashMap<String, String>();
+			options.put("startbits", range[0]);
+			options.put("endbits", range[1]);
+
+			BufferedImage source = BenchmarkImages.cover(cover, type, 42);
+			image = new StegoImage(source, "cover.png");
+			int capacity = BenchmarkImages.capacity(image,
+					image.getLayerCount(), Integer.parseInt(range[0]),
+					Integer.parseInt(range[1]));
+			payloadSize = (int) ((long) capacity * fill / 100);
+			message = new Message(BenchmarkImages.payload(payloadSize, 7));
+			message.prepareMessage();
+
+			stegoImage = new LsbImpl().encode(new StegoPackage(
+					new StegoImage(image), message), options);
+		}
+	}
+
+	/** Counts payload bytes per operation. */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Payload {
+
+		public long payloadBytes;
+	}
+
+	@Benchmark
+	public StegoImage encode(Cover c, Payload p) throws EncodingException {
+		c.message.prepareMessage();
+		StegoImage result = new LsbImpl().encode(new StegoPackage(c.image,
+				c.message), c.options);
+		p.payloadBytes += c.payloadSize;
+		return result;
+	}
+
+	@Benchmark
+	public Message decode(Cover c, Payload p) throws DecodingException {
+		Message result = new LsbImpl().decode(c.stegoImage, c.options);
+		p.payloadBytes += c.payloadSize;
+		return result;
+	}
+}
@@ -0,0 +1,106 @@
+package main.java.benchmarks;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.java.lsb.DecodingException;
+import main.java.lsb.EncodingException;
+import main.java.lsb.LsbImpl;
+import main.java.lsb.Message;
+import main.java.lsb.StegoImage;
+import main.java.lsb.StegoPackage;
+
+/**
+ * Scaling of parallel encoding and decoding with the size of the pool given
+ * to <code>LsbImpl.setPool</code>. Running it across all <code>threads</code>
+ * values gives the speedup curve against the serial path of
+ * {@link LsbBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx8g", "-Djava.awt.headless=true" })
+@State(Scope.Benchmark)
+public class ParallelLsbBenchmark {
+
+	@Param({ "4000x3000", "8192x6144" })
+	public String cover;
+
+	@Param({ "1", "2", "4", "8", "16", "32" })
+	public int threads;
+
+	private StegoImage image;
+	private StegoImage stegoImage;
+	private Message message;
+	private LinkedHashMap<String, String> options;
+	private ForkJoinPool pool;
+	private int payloadSize;
+
+	/** Counts payload bytes per operation. */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Payload {
+
+		public long payloadBytes;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, EncodingException {
+		options = new LinkedHashMap<String, String>();
+		options.put("startbits", "0");
+		options.put("endbits", "1");
+		pool = new ForkJoinPool(threads);
+
+		image = new StegoImage(BenchmarkImages.cover(cover, "TYPE_INT_RGB",
+				42), "cover.png");
+		payloadSize = BenchmarkImages.capacity(image, image.getLayerCount(),
+				0, 1);
+		message = new Message(BenchmarkImages.payload(payloadSize, 7));
+		message.prepareMessage();
+
+		stegoImage = new LsbImpl().encode(new StegoPackage(new StegoImage(
+				image), message), options);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public StegoImage encode(Payload p) throws EncodingException {
+		LsbImpl lsb = new LsbImpl();
+		lsb.setPool(pool);
+		StegoImage result = lsb.encode(new StegoPackage(image, message),
+				options);
+		p.payloadBytes += payloadSize;
+		return result;
+	}
+
+	@Benchmark
+	public Message decode(Payload p) throws DecodingException {
+		LsbImpl lsb = new LsbImpl();
+		lsb.setPool(pool);
+		Message result = lsb.decode(stegoImage, options);
+		p.payloadBytes += payloadSize;
+		return result;
+	}
+}
@@ -0,0 +1,105 @@
+package main.java.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.java.ssim.QualityReport;
+import main.java.ssim.SsimCalculator;
+import main.java.ssim.SsimException;
+import main.java.ssim.SsimHelper;
+import main.java.ssim.SsimOptions;
+import main.java.ssim.SsimReference;
+
+/**
+ * Headless SSIM index of a grey cover and a copy of it with random least
+ * significant bits.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx8g", "-Djava.awt.headless=true" })
+@State(Scope.Benchmark)
+public class SsimBenchmark {
+
+	@Param({ "640x480", "1920x1080", "4000x3000" })
+	public String cover;
+
+	/** Window of the index, <code>gaussian</code> or <code>uniform</code>. */
+	@Param({ "gaussian", "uniform" })
+	public String window;
+
+	/** Width and height of the window. */
+	@Param({ "11", "31" })
+	public int filterWidth;
+
+	private BufferedImage coverImage;
+	private BufferedImage stegoImage;
+	private SsimOptions options;
+	private SsimCalculator calculator;
+	private SsimReference reference;
+
+	@Setup(Level.Trial)
+	public void setUp() throws SsimException {
+		coverImage = BenchmarkImages.cover(cover, "TYPE_BYTE_GRAY", 42);
+		stegoImage = new BufferedImage(coverImage.getWidth(),
+				coverImage.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+		byte[] source = ((DataBufferByte) coverImage.getRaster()
+				.getDataBuffer()).getData();
+		byte[] target = ((DataBufferByte) stegoImage.getRaster()
+				.getDataBuffer()).getData();
+		Random random = new Random(7);
+		for (int i = 0; i < source.length; i++) {
+			target[i] = (byte) (source[i] ^ random.nextInt(2));
+		}
+		options = new SsimOptions();
+		options.setGaussianWindow("gaussian".equals(window));
+		options.setFilterWidth(filterWidth);
+		calculator = new SsimCalculator(options);
+		// fills the cached statistics of the cover
+		reference = calculator.createReference(coverImage);
+		calculator.calculateSsim(reference, stegoImage, coverImage.getHeight());
+	}
+
+	@Benchmark
+	public double calculateSsim() throws SsimException {
+		return SsimHelper.calculateSsim(coverImage, stegoImage, options);
+	}
+
+	/** Comparison with a cover whose window statistics are cached. */
+	@Benchmark
+	public double calculateSsimWithReference() throws SsimException {
+		return calculator.calculateSsim(reference, stegoImage,
+				coverImage.getHeight());
+	}
+
+	@Benchmark
+	public double calculateMsSsim() throws SsimException {
+		return SsimHelper.calculateMsSsim(coverImage, stegoImage, options);
+	}
+
+	@Benchmark
+	public QualityReport calculateQualityReport() throws SsimException {
+		return SsimHelper.calculateQualityReport(coverImage, stegoImage, options);
+	}
+
+	@Benchmark
+	public double calculateTiledSsim() throws SsimException {
+		return SsimHelper.calculateTiledSsim(coverImage, stegoImage, options);
+	}
+}
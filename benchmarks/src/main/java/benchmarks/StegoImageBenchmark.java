@@ -0,0 +1,83 @@
+package main.java.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.java.lsb.ImageUtility;
+import main.java.lsb.StegoImage;
+
+/**
+ * Per-bit access through <code>StegoImage</code> and image output through
+ * <code>ImageUtility.write</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx8g", "-Djava.awt.headless=true" })
+@State(Scope.Benchmark)
+public class StegoImageBenchmark {
+
+	@Param({ "640x480", "1920x1080", "4000x3000", "8192x6144" })
+	public String cover;
+
+	@Param({ "TYPE_INT_RGB", "TYPE_3BYTE_BGR", "TYPE_BYTE_GRAY" })
+	public String type;
+
+	/** Output format used by the write benchmark. */
+	@Param({ "png", "jpg" })
+	public String format;
+
+	private StegoImage image;
+	private File output;
+	private int x;
+	private int y;
+	private boolean bit;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		image = new StegoImage(BenchmarkImages.cover(cover, type, 42),
+				"cover.png");
+		output = File.createTempFile("stego-bench", "." + format);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		output.delete();
+	}
+
+	@Benchmark
+	public int setPixelBit() {
+		// walk the image like the per-bit encoder does
+		if (++x == image.getWidth()) {
+			x = 0;
+			if (++y == image.getHeight()) {
+				y = 0;
+			}
+		}
+		bit = !bit;
+		image.setPixelBit(x, y, 0, 0, bit);
+		return x;
+	}
+
+	@Benchmark
+	public File write() throws IOException {
+		ImageUtility.write(image, output.getAbsolutePath());
+		return output;
+	}
+}
@@ -45,18 +45,22 @@ public class EncodeAction extends AbstractAction {
 
     @Override
     public void actionPerformed(ActionEvent arg0) {
-        executeLsbEncodingSteganography();
+        int changedRows = executeLsbEncodingSteganography();
 
         // TODO move this
         BufferedImage coverImage = mainPanel.getCoverPanel().getImage();
         BufferedImage stegoImage = mainPanel.getStegoPanel().getImage();
-        mainPanel.getResultsLabel().setText(Utils.calculateSsim(coverImage, stegoImage));
+        mainPanel.getResultsLabel().setText(Utils.calculateSsim(coverImage, stegoImage, changedRows));
     }
 
     /**
      * Encodes the secret image into the cover image using LSB steganography.
+     *
+     * @return Number of rows of the stego image, counting from the top, that
+     *         may differ from the cover image; <code>Integer.MAX_VALUE</code>
+     *         if no stego image was made.
      */
-    public void executeLsbEncodingSteganography() {
+    public int executeLsbEncodingSteganography() {
         try {
             BufferedImage coverImage = mainPanel.getCoverPanel().getImage();
             BufferedImage secretImage = mainPanel.getSecretPanel().getImage();
@@ -65,7 +69,7 @@ public class EncodeAction extends AbstractAction {
 
             if (!isEncodingPossible(coverImage, coverImagePath, secretImage,
                     secretImagePath)) {
-                return;
+                return Integer.MAX_VALUE;
             }
 
             String[] secretImagePathArray = secretImagePath
@@ -94,9 +98,11 @@ public class EncodeAction extends AbstractAction {
 
             mainPanel.getStegoPanel().getImagePanel()
                     .setImage(lsbEncoder.getImage(), stegoImagePath);
+            return lsbEncoder.getChangedRows();
         } catch (IOException e) {
             log.error("Could not execute the LSB encoding!", e);
         }
+        return Integer.MAX_VALUE;
     }
 
     /**
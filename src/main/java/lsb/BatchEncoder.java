@@ -0,0 +1,390 @@
+package main.java.lsb;
+
+import java.awt.Dimension;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Encodes many cover/message/output triples within one JVM.
+ * <p>
+ * Jobs run on a fixed number of worker threads, each job with its own
+ * {@link LsbImpl}. A job that fails - whatever the reason - is recorded and
+ * does not affect the others; the {@link Summary} lists all failures next to
+ * the throughput of the batch.
+ * <p>
+ * As most of the time of a job is spent reading and writing files, jobs may
+ * instead run on virtual threads, one per job, so their file accesses
+ * overlap. The embedding is then handed to a pool with a fixed number of
+ * platform threads, which keeps the cores busy without running more
+ * embeddings than there are threads. The pixels of the covers being encoded
+ * at the same time are limited like by {@link BatchPipeline} (see
+ * {@link #setMaxMegapixels(long)}), so the virtual threads overlap file
+ * accesses without decoding every cover of the batch at once.
+ */
+public class BatchEncoder {
+
+	private static final Log log = LogFactory.getLog(BatchEncoder.class);
+
+	/** Options for the encoding, containing startbits and endbits. */
+	private final LinkedHashMap<String, String> options;
+	/** Number of worker threads, or of embedding threads if virtual. */
+	private final int threads;
+	/** Tells whether jobs run on virtual threads. */
+	private final boolean virtualThreads;
+	/** Maximal number of pixels of the covers of running virtual jobs. */
+	private long maxPixels;
+
+	/**
+	 * Creates a batch encoder.
+	 *
+	 * @param startBits
+	 *            The start range for writable bits.
+	 * @param endBits
+	 *            The end range for writable bits.
+	 * @param threads
+	 *            Number of jobs that run at the same time.
+	 */
+	public BatchEncoder(int startBits, int endBits, int threads) {
+		this(startBits, endBits, threads, false);
+	}
+
+	/**
+	 * Creates a batch encoder which may run its jobs on virtual threads.
+	 *
+	 * @param startBits
+	 *            The start range for writable bits.
+	 * @param endBits
+	 *            The end range for writable bits.
+	 * @param threads
+	 *            Number of jobs that run at the same time or, with virtual
+	 *            threads, number of threads that embed messages.
+	 * @param virtualThreads
+	 *            <code>true</code> to start a virtual thread for every job.
+	 */
+	public BatchEncoder(int startBits, int endBits, int threads,
+			boolean virtualThreads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be "
+					+ "positive: " + threads);
+		}
+		options = new LinkedHashMap<String, String>();
+		options.put("startbits", Integer.toString(startBits));
+		options.put("endbits", Integer.toString(endBits));
+		this.threads = threads;
+		this.virtualThreads = virtualThreads;
+		maxPixels = Runtime.getRuntime().maxMemory() / 32;
+	}
+
+	/**
+	 * Sets the limit of pixels of the covers encoded at the same time on
+	 * virtual threads. A job waits before it decodes a cover that would
+	 * exceed the limit. Without virtual threads the number of threads limits
+	 * the covers.
+	 *
+	 * @param megapixels
+	 *            Limit in millions of pixels.
+	 */
+	public void setMaxMegapixels(long megapixels) {
+		if (megapixels < 1) {
+			throw new IllegalArgumentException("Limit of megapixels must be "
+					+ "positive: " + megapixels);
+		}
+		maxPixels = megapixels * 1000000L;
+	}
+
+	/**
+	 * Reads jobs from a manifest. Every line holds the paths of the cover,
+	 * the message and the result, separated by tabs. Empty lines and lines
+	 * starting with <code>#</code> are skipped.
+	 *
+	 * @param manifestPath
+	 *            Filepath to the manifest.
+	 * @return Jobs in the order of the manifest.
+	 * @throws IOException
+	 *             If the manifest could not be read or a line is malformed.
+	 */
+	public static List<Job> readManifest(String manifestPath)
+			throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		BufferedReader in = Files.newBufferedReader(Paths.get(manifestPath),
+				StandardCharsets.UTF_8);
+		try {
+			int number = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				number++;
+				if (line.trim().isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\t");
+				if (fields.length != 3) {
+					throw new IOException("Line " + number + " of "
+							+ manifestPath + " does not hold cover, message"
+							+ " and result paths separated by tabs");
+				}
+				jobs.add(new Job(fields[0], fields[1], fields[2]));
+			}
+		} finally {
+			in.close();
+		}
+		return jobs;
+	}
+
+	/**
+	 * Creates a job for every cover in a directory whose name matches the
+	 * given glob. All covers receive the same message; results are written
+	 * to the output directory under the names of the covers.
+	 *
+	 * @param coverDirectory
+	 *            Directory with the covers.
+	 * @param glob
+	 *            Pattern of the cover names, e.g. <code>*.png</code>.
+	 * @param messagePath
+	 *            Filepath to the message.
+	 * @param outputDirectory
+	 *            Directory of the results.
+	 * @return Jobs ordered by cover name.
+	 * @throws IOException
+	 *             If the directory could not be listed.
+	 */
+	public static List<Job> listDirectory(String coverDirectory, String glob,
+			String messagePath, String outputDirectory) throws IOException {
+		List<Path> covers = new ArrayList<Path>();
+		DirectoryStream<Path> dir = Files.newDirectoryStream(
+				Paths.get(coverDirectory), glob);
+		try {
+			for (Path cover : dir) {
+				if (Files.isRegularFile(cover)) {
+					covers.add(cover);
+				}
+			}
+		} finally {
+			dir.close();
+		}
+		Collections.sort(covers);
+
+		List<Job> jobs = new ArrayList<Job>();
+		for (Path cover : covers) {
+			jobs.add(new Job(cover.toString(), messagePath, new File(
+					outputDirectory, cover.getFileName().toString()).getPath()));
+		}
+		return jobs;
+	}
+
+	/**
+	 * Runs all jobs and waits until they are finished.
+	 *
+	 * @param jobs
+	 *            Jobs to run.
+	 * @return Summary of the batch.
+	 */
+	public Summary run(List<Job> jobs) {
+		long start = System.nanoTime();
+		ExecutorService pool;
+		final ForkJoinPool embedPool;
+		final PixelBudget budget;
+		if (virtualThreads) {
+			pool = Executors.newVirtualThreadPerTaskExecutor();
+			embedPool = new ForkJoinPool(threads);
+			budget = new PixelBudget(maxPixels);
+		} else {
+			pool = Executors.newFixedThreadPool(threads);
+			embedPool = null;
+			budget = null;
+		}
+		List<Future<Long>> results = new ArrayList<Future<Long>>(jobs.size());
+		try {
+			for (final Job job : jobs) {
+				results.add(pool.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws EncodingException,
+							InterruptedException {
+						LsbImpl lsb = new LsbImpl();
+						lsb.setPool(embedPool);
+						if (budget == null) {
+							return lsb.encodeFile(job.getCover(),
+									job.getMessage(), job.getOutput(), options);
+						}
+						// the cover is decoded, embedded and written within
+						// its share of the budget
+						long pixels;
+						try {
+							Dimension size = ImageUtility.getSize(job
+									.getCover());
+							pixels = (long) size.width * size.height;
+						} catch (IOException e) {
+							throw new EncodingException(
+									"Could not create stegoimage.", e);
+						}
+						budget.acquire(pixels);
+						try {
+							return lsb.encodeFile(job.getCover(),
+									job.getMessage(), job.getOutput(), options);
+						} finally {
+							budget.release(pixels);
+						}
+					}
+				}));
+			}
+
+			Summary summary = new Summary(jobs.size());
+			for (int i = 0; i < jobs.size(); i++) {
+				try {
+					summary.succeeded(results.get(i).get());
+				} catch (ExecutionException e) {
+					// errors are isolated as well, the worker survives them
+					Throwable cause = e.getCause();
+					log.error("Could not encode " + jobs.get(i) + ".", cause);
+					summary.failed(jobs.get(i), cause.toString());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					summary.failed(jobs.get(i), "interrupted");
+				}
+			}
+			summary.finish(System.nanoTime() - start);
+			return summary;
+		} finally {
+			pool.shutdownNow();
+			if (embedPool != null) {
+				embedPool.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Paths of one encoding.
+	 */
+	public static class Job {
+
+		private final String cover;
+		private final String message;
+		private final String output;
+
+		public Job(String cover, String message, String output) {
+			this.cover = cover;
+			this.message = message;
+			this.output = output;
+		}
+
+		public String getCover() {
+			return cover;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public String getOutput() {
+			return output;
+		}
+
+		@Override
+		public String toString() {
+			return cover + " + " + message + " -> " + output;
+		}
+	}
+
+	/**
+	 * Outcome of a batch.
+	 */
+	public static class Summary {
+
+		/** Number of jobs in the batch. */
+		private final int jobs;
+		/** Descriptions of the failed jobs. */
+		private final List<String> failures = new ArrayList<String>();
+		/** Number of hidden bytes. */
+		private long bytes;
+		/** Duration of the batch. */
+		private long nanos;
+
+		Summary(int jobs) {
+			this.jobs = jobs;
+		}
+
+		/**
+		 * Records a successful job.
+		 *
+		 * @param hidden
+		 *            Number of bytes hidden by the job.
+		 */
+		synchronized void succeeded(long hidden) {
+			bytes += hidden;
+		}
+
+		/**
+		 * Records a failed job.
+		 *
+		 * @param job
+		 *            The job.
+		 * @param cause
+		 *            Description of the failure.
+		 */
+		synchronized void failed(Job job, String cause) {
+			failures.add(job + ": " + cause);
+		}
+
+		/**
+		 * Records the end of the batch.
+		 *
+		 * @param elapsed
+		 *            Duration of the batch in nanoseconds.
+		 */
+		synchronized void finish(long elapsed) {
+			nanos = elapsed;
+		}
+
+		public int getJobs() {
+			return jobs;
+		}
+
+		public synchronized List<String> getFailures() {
+			return new ArrayList<String>(failures);
+		}
+
+		public synchronized long getBytes() {
+			return bytes;
+		}
+
+		public synchronized long getNanos() {
+			return nanos;
+		}
+
+		@Override
+		public synchronized String toString() {
+			double seconds = nanos / 1e9;
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format(
+					"Batch finished: %d jobs, %d succeeded, %d failed in %.2f s%n",
+					jobs, jobs - failures.size(), failures.size(), seconds));
+			sb.append(String.format(
+					"Throughput: %.2f jobs/s, %.2f MiB/s of hidden data%n",
+					(jobs - failures.size()) / seconds, bytes / seconds
+							/ (1 << 20)));
+			for (String failure : failures) {
+				sb.append("Failed: ").append(failure).append(
+						String.format("%n"));
+			}
+			return sb.toString();
+		}
+	}
+}
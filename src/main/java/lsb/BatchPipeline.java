@@ -0,0 +1,367 @@
+package main.java.lsb;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Encodes a batch in three concurrent stages: covers are decoded, messages are
+ * embedded and results are written by separate groups of threads.
+ * <p>
+ * Stages are connected by bounded queues, so a slow stage holds back the ones
+ * before it. In addition the decoded pixels of all covers between the start
+ * of their decoding and the end of their writing are limited (see
+ * {@link #setMaxMegapixels(long)}); a reader waits before it decodes a cover
+ * that would exceed the limit. A single cover larger than the limit is
+ * decoded once no other cover is in flight.
+ * <p>
+ * Like with {@link BatchEncoder}, a failed job is recorded in the
+ * {@link BatchEncoder.Summary} and does not affect the others.
+ */
+public class BatchPipeline {
+
+	private static final Log log = LogFactory.getLog(BatchPipeline.class);
+
+	/** Options for the encoding, containing startbits and endbits. */
+	private final LinkedHashMap<String, String> options;
+	/** Number of threads decoding covers. */
+	private int readers;
+	/** Number of threads embedding messages. */
+	private int embedders;
+	/** Number of threads writing results. */
+	private int writers;
+	/** Capacity of each queue between two stages. */
+	private int queueCapacity;
+	/** Maximal number of decoded pixels in flight. */
+	private long maxPixels;
+
+	/**
+	 * Creates a pipeline with one thread per processor in every stage, queues
+	 * of twice that capacity and a limit of decoded pixels taking an eighth
+	 * of the maximum heap size at 4 bytes per pixel.
+	 *
+	 * @param startBits
+	 *            The start range for writable bits.
+	 * @param endBits
+	 *            The end range for writable bits.
+	 */
+	public BatchPipeline(int startBits, int endBits) {
+		options = new LinkedHashMap<String, String>();
+		options.put("startbits", Integer.toString(startBits));
+		options.put("endbits", Integer.toString(endBits));
+		int cpus = Runtime.getRuntime().availableProcessors();
+		readers = cpus;
+		embedders = cpus;
+		writers = cpus;
+		queueCapacity = 2 * cpus;
+		maxPixels = Runtime.getRuntime().maxMemory() / 32;
+	}
+
+	/**
+	 * Sets the number of threads of every stage.
+	 *
+	 * @param readers
+	 *            Number of threads decoding covers.
+	 * @param embedders
+	 *            Number of threads embedding messages.
+	 * @param writers
+	 *            Number of threads writing results.
+	 */
+	public void setStageThreads(int readers, int embedders, int writers) {
+		if (readers < 1 || embedders < 1 || writers < 1) {
+			throw new IllegalArgumentException("Number of threads must be "
+					+ "positive: " + readers + "/" + embedders + "/" + writers);
+		}
+		this.readers = readers;
+		this.embedders = embedders;
+		this.writers = writers;
+	}
+
+	/**
+	 * Sets the number of covers each queue between two stages may hold.
+	 *
+	 * @param queueCapacity
+	 *            Capacity of the queues.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be "
+					+ "positive: " + queueCapacity);
+		}
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Sets the limit of decoded pixels in flight.
+	 *
+	 * @param megapixels
+	 *            Limit in millions of pixels.
+	 */
+	public void setMaxMegapixels(long megapixels) {
+		if (megapixels < 1) {
+			throw new IllegalArgumentException("Limit of megapixels must be "
+					+ "positive: " + megapixels);
+		}
+		maxPixels = megapixels * 1000000L;
+	}
+
+	/**
+	 * Runs all jobs and waits until they are finished.
+	 *
+	 * @param jobs
+	 *            Jobs to run.
+	 * @return Summary of the batch.
+	 */
+	public BatchEncoder.Summary run(final List<BatchEncoder.Job> jobs) {
+		long start = System.nanoTime();
+		final BatchEncoder.Summary summary = new BatchEncoder.Summary(
+				jobs.size());
+		final PixelBudget budget = new PixelBudget(maxPixels);
+		final BlockingQueue<Item> decoded = new ArrayBlockingQueue<Item>(
+				queueCapacity);
+		final BlockingQueue<Item> embedded = new ArrayBlockingQueue<Item>(
+				queueCapacity);
+		final AtomicInteger next = new AtomicInteger();
+
+		ExecutorService pool = Executors.newFixedThreadPool(readers
+				+ embedders + writers);
+		try {
+			List<Future<?>> reading = new ArrayList<Future<?>>();
+			for (int i = 0; i < readers; i++) {
+				reading.add(pool.submit(new Stage() {
+					@Override
+					void work() throws InterruptedException {
+						int i;
+						while ((i = next.getAndIncrement()) < jobs.size()) {
+							Item item = read(jobs.get(i), budget, summary);
+							if (item != null) {
+								hand(item, decoded, budget);
+							}
+						}
+					}
+				}));
+			}
+			List<Future<?>> embedding = new ArrayList<Future<?>>();
+			for (int i = 0; i < embedders; i++) {
+				embedding.add(pool.submit(new Stage() {
+					@Override
+					void work() throws InterruptedException {
+						Item item;
+						while ((item = decoded.take()) != Item.END) {
+							if (embed(item, budget, summary)) {
+								hand(item, embedded, budget);
+							}
+						}
+					}
+				}));
+			}
+			List<Future<?>> writing = new ArrayList<Future<?>>();
+			for (int i = 0; i < writers; i++) {
+				writing.add(pool.submit(new Stage() {
+					@Override
+					void work() throws InterruptedException {
+						Item item;
+						while ((item = embedded.take()) != Item.END) {
+							write(item, budget, summary);
+						}
+					}
+				}));
+			}
+
+			// close every stage once the one before it has drained
+			await(reading);
+			for (int i = 0; i < embedders; i++) {
+				decoded.put(Item.END);
+			}
+			await(embedding);
+			for (int i = 0; i < writers; i++) {
+				embedded.put(Item.END);
+			}
+			await(writing);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.error("Batch was interrupted.", e);
+		} finally {
+			pool.shutdownNow();
+		}
+		summary.finish(System.nanoTime() - start);
+		return summary;
+	}
+
+	/**
+	 * Decodes the cover and opens the message of a job.
+	 *
+	 * @return The decoded job or <code>null</code> if it failed.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the pixel budget.
+	 */
+	private Item read(BatchEncoder.Job job, PixelBudget budget,
+			BatchEncoder.Summary summary) throws InterruptedException {
+		Item item = new Item(job);
+		try {
+			Dimension size = ImageUtility.getSize(job.getCover());
+			item.pixels = (long) size.width * size.height;
+			budget.acquire(item.pixels);
+			item.reserved = true;
+			// covers too large for the heap are mapped from disk, like by
+			// LsbImpl.encodeFile()
+			BufferedImage bi = ImageUtility.readLargeImage(job.getCover());
+			if (bi == null) {
+				throw new IOException("Unsupported image format: "
+						+ job.getCover());
+			}
+			item.image = StegoImage.wrap(bi, job.getCover());
+			// the payload is pulled from disk while it is embedded
+			item.message = Message.stream(job.getMessage());
+			return item;
+		} catch (InterruptedException e) {
+			discard(item, budget);
+			throw e;
+		} catch (Throwable e) {
+			fail(item, budget, summary, "Could not create stegoimage.", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Embeds the message of a decoded job.
+	 *
+	 * @return <code>true</code> if the job may be written.
+	 */
+	private boolean embed(Item item, PixelBudget budget,
+			BatchEncoder.Summary summary) {
+		try {
+			item.image = new LsbImpl().encode(new StegoPackage(item.image,
+					item.message), options);
+			return true;
+		} catch (Throwable e) {
+			fail(item, budget, summary, "Could not encode message.", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the result of an embedded job and releases its resources.
+	 */
+	private void write(Item item, PixelBudget budget,
+			BatchEncoder.Summary summary) {
+		try {
+			item.image.write(item.job.getOutput());
+			summary.succeeded(item.message.getSize());
+			discard(item, budget);
+		} catch (Throwable e) {
+			fail(item, budget, summary, "Could not write result image.", e);
+		}
+	}
+
+	/**
+	 * Hands a job to the next stage, waiting while its queue is full.
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while waiting; the job is discarded.
+	 */
+	private static void hand(Item item, BlockingQueue<Item> queue,
+			PixelBudget budget) throws InterruptedException {
+		try {
+			queue.put(item);
+		} catch (InterruptedException e) {
+			discard(item, budget);
+			throw e;
+		}
+	}
+
+	/**
+	 * Records a failed job and releases its resources.
+	 */
+	private static void fail(Item item, PixelBudget budget,
+			BatchEncoder.Summary summary, String message, Throwable cause) {
+		// the stage thread goes on with the next job whatever went wrong
+		log.error(message + " " + item.job, cause);
+		summary.failed(item.job, message + " " + cause);
+		discard(item, budget);
+	}
+
+	/**
+	 * Releases the pixels, the mapped raster and the message file of a job.
+	 */
+	private static void discard(Item item, PixelBudget budget) {
+		if (item.reserved) {
+			budget.release(item.pixels);
+			item.reserved = false;
+		}
+		ImageUtility.dispose(item.image);
+		item.image = null;
+		if (item.message != null) {
+			try {
+				item.message.close();
+			} catch (IOException e) {
+				log.error("Could not close message file.", e);
+			}
+			item.message = null;
+		}
+	}
+
+	/**
+	 * Waits for the threads of a stage.
+	 */
+	private static void await(List<Future<?>> stage)
+			throws InterruptedException {
+		for (Future<?> f : stage) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				// stages handle the failures of their jobs themselves
+				log.error("Stage of the batch has stopped.", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Job travelling through the stages.
+	 */
+	private static class Item {
+
+		/** Marks the end of a queue. */
+		static final Item END = new Item(null);
+
+		final BatchEncoder.Job job;
+		/** Number of pixels of the cover. */
+		long pixels;
+		/** Tells whether the pixels are taken from the budget. */
+		boolean reserved;
+		StegoImage image;
+		Message message;
+
+		Item(BatchEncoder.Job job) {
+			this.job = job;
+		}
+	}
+
+	/**
+	 * Loop of one stage thread.
+	 */
+	private abstract static class Stage implements Callable<Void> {
+
+		abstract void work() throws InterruptedException;
+
+		@Override
+		public Void call() throws InterruptedException {
+			work();
+			return null;
+		}
+	}
+}
@@ -19,11 +19,17 @@
  */
 package main.java.lsb;
 
+import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Image;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
 import java.awt.image.PixelGrabber;
 import java.awt.image.Raster;
+import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -34,9 +40,13 @@ import java.util.Iterator;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
 
 /**
  * Class containing mostly static methods to do some image manipulations.
@@ -172,6 +182,184 @@ public class ImageUtility {
 		return ImageIO.read(f);
 	}
 
+	/**
+	 * Returns instance of <code>BufferedImage</code> read from disk into a
+	 * memory-mapped raster (see {@link MappedDataBuffer}), so the image does
+	 * not have to fit in the heap. Only PNG and JPEG images with 8 bit grey or
+	 * RGB samples, with or without alpha, can be read this way.
+	 * 
+	 * @param filename
+	 *            Filepath to image which should be loaded.
+	 * @return Loaded image, of type <code>TYPE_CUSTOM</code>.
+	 * @throws java.io.IOException
+	 *             If could not load image or the image can not be mapped.
+	 */
+	public static BufferedImage readMappedImage(String filename)
+			throws IOException {
+		return readImage(filename, true);
+	}
+
+	/**
+	 * Returns instance of <code>BufferedImage</code> read from disk. Images
+	 * whose samples would take more than a quarter of the maximum heap size
+	 * are read into a memory-mapped raster if possible, the others like with
+	 * {@link #readImage(String)}.
+	 * 
+	 * @param filename
+	 *            Filepath to image which should be loaded.
+	 * @return Loaded image.
+	 * @throws java.io.IOException
+	 *             If could not load image.
+	 */
+	public static BufferedImage readLargeImage(String filename)
+			throws IOException {
+		return readImage(filename, false);
+	}
+
+	/**
+	 * Releases an image read by {@link #readMappedImage(String)} or
+	 * {@link #readLargeImage(String)}: if its raster is mapped, the mapping
+	 * and its temporary file are removed. Images on the heap are left to the
+	 * garbage collector. The image must not be used afterwards.
+	 * 
+	 * @param image
+	 *            Image that is no longer used, may be <code>null</code>.
+	 */
+	public static void dispose(BufferedImage image) {
+		if (image != null
+				&& image.getRaster().getDataBuffer() instanceof MappedDataBuffer) {
+			((MappedDataBuffer) image.getRaster().getDataBuffer()).close();
+		}
+	}
+
+	/**
+	 * Returns the size of an image on disk without decoding its pixels.
+	 * 
+	 * @param filename
+	 *            Filepath to the image.
+	 * @return Width and height of the image.
+	 * @throws java.io.IOException
+	 *             If the image could not be opened or its format is not
+	 *             supported.
+	 */
+	public static Dimension getSize(String filename) throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream(new File(filename));
+		if (in == null) {
+			throw new IOException("Could not open image " + filename);
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				throw new IOException("Unsupported image format: " + filename);
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				return new Dimension(reader.getWidth(0), reader.getHeight(0));
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads an image from disk, into a memory-mapped raster if required.
+	 * 
+	 * @param filename
+	 *            Filepath to image which should be loaded.
+	 * @param mapped
+	 *            Whether the image must be mapped, or only if it is large.
+	 * @return Loaded image.
+	 * @throws java.io.IOException
+	 *             If could not load image.
+	 */
+	private static BufferedImage readImage(String filename, boolean mapped)
+			throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream(new File(filename));
+		if (in == null) {
+			throw new IOException("Could not open image " + filename);
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				throw new IOException("Unsupported image format: " + filename);
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				ImageTypeSpecifier type = reader.getImageTypes(0).next();
+				SampleModel sm = type.getSampleModel();
+				int bands = sm.getNumBands();
+
+				boolean mappable = isMappable(reader, type);
+
+				if (!mapped
+						&& ((long) width * height * bands <= Runtime
+								.getRuntime().maxMemory() / 4 || !mappable)) {
+					return reader.read(0);
+				}
+				if (!mappable) {
+					throw new IOException("Could not map image " + filename
+							+ " - only 8 bit grey or RGB PNG and JPEG images"
+							+ " are supported");
+				}
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setDestination(MappedDataBuffer.createImage(width,
+						height, bands, null));
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Tells whether images of the given type can be read into a mapped
+	 * raster. Some readers (e.g. BMP) require a destination backed by an
+	 * array, so only the PNG and JPEG readers, which write through the generic
+	 * raster methods, are used.
+	 * 
+	 * @param reader
+	 *            Reader of the image.
+	 * @param type
+	 *            Type of the decoded image.
+	 * @return <code>true</code> for 8 bit grey or RGB samples, with or without
+	 *         alpha.
+	 * @throws IOException
+	 *             If the format could not be determined.
+	 */
+	static boolean isMappable(ImageReader reader,
+			ImageTypeSpecifier type) throws IOException {
+		String format = reader.getFormatName();
+		if (!"png".equalsIgnoreCase(format)
+				&& !"jpeg".equalsIgnoreCase(format)) {
+			return false;
+		}
+		SampleModel sm = type.getSampleModel();
+		ColorModel cm = type.getColorModel();
+		int bands = sm.getNumBands();
+		if (cm instanceof IndexColorModel
+				|| sm.getDataType() != DataBuffer.TYPE_BYTE
+				|| cm.getNumComponents() != bands
+				|| cm.hasAlpha() != (bands == 2 || bands == 4)) {
+			return false;
+		}
+		for (int b = 0; b < bands; b++) {
+			if (sm.getSampleSize(b) != 8) {
+				return false;
+			}
+		}
+		int space = cm.getColorSpace().getType();
+		return bands < 3 ? space == ColorSpace.TYPE_GRAY
+				: space == ColorSpace.TYPE_RGB;
+	}
+
 	/**
 	 * Returns instance of <code>BufferedImage</code> read from byte array.
 	 * 
@@ -29,8 +29,6 @@ public class LsbDecoder {
 	private int endBits;
 	/** Number of image layers. */
 	private int layers;
-	/** Counts the number of bits that have been written. */
-	private long bitCounter;
 	/** Number of bits hidden in one layer of the image */
 	private int bitsPerLayer;
 	/**
@@ -50,7 +48,8 @@ public class LsbDecoder {
 	public LsbDecoder(BufferedImage sourceImage, String sourceImagePath,
 			String hiddenImagePath) throws IOException {
 
-		StegoImage stegoSourceImage = new StegoImage(sourceImage,
+		// decoding only reads the pixels, no need to copy them
+		StegoImage stegoSourceImage = StegoImage.wrap(sourceImage,
 				sourceImagePath);
 
 		LinkedHashMap<String, String> o = new LinkedHashMap<String, String>();
@@ -131,23 +130,31 @@ public class LsbDecoder {
 		bitsPerLayer = (endBits - startBits) + 1;
 		maxBits = simage.getHeight() * simage.getWidth() * bitsPerLayer
 				* layers;
-		Shot sh;
-		int size = 0;
-		bitCounter = 0;
-
-		// get the size - in the first 32 hidden bits
-		for (int i = 0; i < 32; i++) {
+		RasterExtractor extractor = null;
+		ShotCursor sh = null;
+		int size2 = 0;
 
-			sh = getNextShot(simage.getWidth());
-			int bit = simage.getPixelBit(sh.getX(), sh.getY(), sh.getLayer(),
-					sh.getBitPosition());
-			size = size << 1 | bit;
-		}
+		if (RasterExtractor.isSupported(simage)) {
+			// read whole bytes straight from the data buffer
+			extractor = new RasterExtractor(simage, startBits, endBits);
+			size2 = extractor.readSize();
+		} else {
+			int size = 0;
+			sh = new ShotCursor(simage.getWidth(), layers, startBits, endBits);
+
+			// get the size - in the first 32 hidden bits
+			for (int i = 0; i < 32; i++) {
+
+				int bit = simage.getPixelBit(sh.getX(), sh.getY(),
+						sh.getLayer(), sh.getBitPosition());
+				sh.advance();
+				size = size << 1 | bit;
+			}
 
-		// reverse it as it was retrieved backwards
-		int size2 = 0;
-		for (int j = 0; j < 32; j++) {
-			size2 = size2 << 1 | ((size >> j) & 0x1);
+			// reverse it as it was retrieved backwards
+			for (int j = 0; j < 32; j++) {
+				size2 = size2 << 1 | ((size >> j) & 0x1);
+			}
 		}
 
 		if (size2 * 8 + 32 > maxBits) {
@@ -176,13 +183,18 @@ public class LsbDecoder {
 			throw new DecodingException("Message is bigger than "
 					+ "supposed to be");
 		}
+		if (extractor != null) {
+			// fill the preallocated message buffer directly
+			extractor.read(rmess.getBytes(), 0, size2 / 8);
+			return rmess;
+		}
 		// start retrieving and writing out the message
 		for (int k = 0; k < size2; k++) {
 
-			sh = getNextShot(simage.getWidth());
 			try {
 				rmess.setNext((simage.getPixelBit(sh.getX(), sh.getY(),
 						sh.getLayer(), sh.getBitPosition())) == 0x1);
+				sh.advance();
 			} catch (IOException e) {
 				throw new DecodingException("IOException occured during "
 						+ "retrieving and writing out the message", e);
@@ -193,27 +205,4 @@ public class LsbDecoder {
 		return rmess;
 	}
 
-	/**
-	 * Gets the next shot on the image.
-	 * 
-	 * @param width
-	 *            The width of the image.
-	 * @return The next shot to make.
-	 */
-	private Shot getNextShot(int width) {
-		if (bitCounter > maxBits) {
-			return null;
-		}
-		int plane = startBits + ((int) bitCounter / maxBits);
-		int rangeupto = (int) (bitCounter % (bitsPerLayer * layers));
-		int tmp = (int) (bitCounter - rangeupto) / (bitsPerLayer * layers);
-		int xrow = tmp % width;
-		int yrow = (tmp - xrow) / width;
-
-		bitCounter++;
-		return new Shot(xrow, yrow, plane + rangeupto % bitsPerLayer, rangeupto
-				/ bitsPerLayer);
-
-	}
-
 }
@@ -27,8 +27,6 @@ public class LsbEncoder {
 	private int endBits;
 	/** Number of image layers. */
 	private int layers;
-	/** Counts the number of bits that have been written. */
-	private long bitCounter;
 	/** Number of bits hidden in one layer of the image */
 	private int bitsPerLayer;
 	/**
@@ -36,6 +34,8 @@ public class LsbEncoder {
 	 * configuration
 	 */
 	private int maxBits;
+	/** Number of rows, counting from the top, changed by the encoding. */
+	private int changedRows;
 
 	/**
 	 * The constructor for LsbEncoder.
@@ -51,6 +51,7 @@ public class LsbEncoder {
 			BufferedImage secretImage, String secretImagePath,
 			String stegoImagePath) throws IOException {
 
+		changedRows = coverImage.getHeight();
 		StegoImage stegoCoverImage = new StegoImage(coverImage, coverImagePath);
 		Message stegoMessageImage = new Message(secretImagePath);
 
@@ -94,6 +95,16 @@ public class LsbEncoder {
 		return stegoImage;
 	}
 
+	/**
+	 * Gives the number of rows of the stego image, counting from the top, that
+	 * may differ from the cover image. Rows below them are left as they are.
+	 * 
+	 * @return Number of changed rows.
+	 */
+	public int getChangedRows() {
+		return changedRows;
+	}
+
 	/**
 	 * Encodes an image with the given message. The start and end positions for
 	 * possible hits should be zero based - i.e. the first bit is 0. This is
@@ -128,11 +139,8 @@ public class LsbEncoder {
 		// assign in the start and end bits.
 		startBits = startbits;
 		endBits = endbits;
-		bitCounter = 0;
 		Message message = p.getMessage();
 		StegoImage cimage = p.getImage();
-		Shot sh;
-		bitCounter = 0;
 		layers = cimage.getLayerCount();
 		bitsPerLayer = (endBits - startBits) + 1;
 		maxBits = cimage.getHeight() * cimage.getWidth() * bitsPerLayer
@@ -140,7 +148,7 @@ public class LsbEncoder {
 		int messagesize = (int) message.getSize();
 
 		// check the message fill actually fit
-		if ((messagesize * 8) + 32 > maxBits) {
+		if ((messagesize * 8L) + 32 > maxBits) {
 			JOptionPane.showMessageDialog(null,
 					"Could not hide the secret message in the stego image: \n"
 							+ "the message is to big for the cover image!");
@@ -149,65 +157,48 @@ public class LsbEncoder {
 					+ "this configuration [B]: " + (maxBits - 32) / 8);
 		}
 
-		// put the size in the first 32 bits
-		for (int i = 0; i < 32; i++) {
-			// generate a valid shot
-			sh = getNextShot(cimage.getWidth());
-			// put in the next size bit...
-			boolean bit = ((messagesize >> i) & 0x1) == 0x1;
-
-			cimage.setPixelBit(sh.getX(), sh.getY(), sh.getLayer(),
-					sh.getBitPosition(), bit);
-		}
+		changedRows = RasterEmbedder.usedRows(messagesize,
+				bitsPerLayer * layers, cimage.getWidth(), cimage.getHeight());
+
+		if (RasterEmbedder.isSupported(cimage)) {
+			// write whole bytes straight into the data buffer
+			new RasterEmbedder(cimage, startBits, endBits).embed(message,
+					messagesize);
+		} else {
+			ShotCursor sh = new ShotCursor(cimage.getWidth(), layers,
+					startBits, endBits);
+
+			// put the size in the first 32 bits
+			for (int i = 0; i < 32; i++) {
+				// put in the next size bit...
+				boolean bit = ((messagesize >> i) & 0x1) == 0x1;
+
+				cimage.setPixelBit(sh.getX(), sh.getY(), sh.getLayer(),
+						sh.getBitPosition(), bit);
+				sh.advance();
+			}
 
-		// now we can start embedding the message into the cover
-		while (!message.isFinished()) {
-			sh = getNextShot(cimage.getWidth());
-
-			boolean bit;
-			try {
-				bit = message.nextBit();
-			} catch (IOException e) {
-				JOptionPane
-						.showMessageDialog(null,
-								"Cound not hide the secert message in the stego image!");
-				throw new EncodingException("IOException occured while "
-						+ "fetching next bit of the message", e);
+			// now we can start embedding the message into the cover
+			while (!message.isFinished()) {
+				boolean bit;
+				try {
+					bit = message.nextBit();
+				} catch (IOException e) {
+					JOptionPane
+							.showMessageDialog(null,
+									"Cound not hide the secert message in the stego image!");
+					throw new EncodingException("IOException occured while "
+							+ "fetching next bit of the message", e);
+				}
+				cimage.setPixelBit(sh.getX(), sh.getY(), sh.getLayer(),
+						sh.getBitPosition(), bit);
+				sh.advance();
 			}
-			cimage.setPixelBit(sh.getX(), sh.getY(), sh.getLayer(),
-					sh.getBitPosition(), bit);
 		}
 		log.info("Finished LSB encoding. Number of encoded bytes: "
 				+ messagesize);
 		// now the message is hidden inside the image.
-		try {
-			return new StegoImage(cimage.getImage(), cimage.getPath());
-		} catch (IOException e) {
-			throw new EncodingException("Could not create final image", e);
-		}
-
-	}
-
-	/**
-	 * Gets the next shot on the image.
-	 * 
-	 * @param width
-	 *            The width of the image.
-	 * @return The next shot to make.
-	 */
-	private Shot getNextShot(int width) {
-		if (bitCounter > maxBits) {
-			return null;
-		}
-		int plane = startBits + ((int) bitCounter / maxBits);
-		int rangeupto = (int) (bitCounter % (bitsPerLayer * layers));
-		int tmp = (int) (bitCounter - rangeupto) / (bitsPerLayer * layers);
-		int xrow = tmp % width;
-		int yrow = (tmp - xrow) / width;
-
-		bitCounter++;
-		return new Shot(xrow, yrow, plane + rangeupto % bitsPerLayer, rangeupto
-				/ bitsPerLayer);
+		return StegoImage.wrap(cimage, cimage.getPath());
 
 	}
 
@@ -20,9 +20,13 @@
 package main.java.lsb;
 
 import java.awt.image.BufferedImage;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -52,81 +56,52 @@ public class LsbImpl implements SteganographicTechnique {
 	private int endBits;
 	/** Number of image layers. */
 	private int layers;
-	/** Counts the number of bits that have been written. */
-	private long bitCounter;
 	/** Number of bits hidden in one layer of the image */
 	private int bitsPerLayer;
 	/**
 	 * Number of maximum bits that can be hidden within this image and with this
 	 * configuration
 	 */
-	private int maxBits;
+	private long maxBits;
+	/** Pool for parallel coding, <code>null</code> to work serially. */
+	private ForkJoinPool pool;
 
 	public LsbImpl(String[] args) {
 
+		if (args.length > 0
+				&& (args[0].equals("--batch")
+						|| args[0].equals("--batch-virtual") || args[0]
+							.equals("--batch-pipeline"))) {
+			runBatch(args);
+			return;
+		}
+
 		switch (args.length) {
 		// encoding
 		case 5:
 			LinkedHashMap<String, String> o = new LinkedHashMap<String, String>();
 			o.put("startbits", args[3]);
 			o.put("endbits", args[4]);
-			StegoImage si = null;
-			Message msg = null;
-			try {
-				msg = new Message(args[1]);
-			} catch (FileNotFoundException e) {
-				log.error("Could not find message file.", e);
-				// System.exit(1);
-			} catch (IOException e) {
-				log.error("Could not create message object.", e);
-				// System.exit(1);
-
-			}
 			try {
-				BufferedImage bi = ImageUtility.readImage(args[0]);
-				si = new StegoImage(bi, args[0]);
-			} catch (IllegalArgumentException e) {
-				log.error("Could not create stegoimage.", e);
-				// System.exit(1);
-			} catch (NullPointerException e) {
-				log.error("Could not create stegoimage.", e);
-				// System.exit(1);
-			} catch (IOException e) {
-				log.error("Could not create stegoimage.", e);
-				// System.exit(1);
-			}
-
-			StegoPackage p = new StegoPackage(si, msg);
-			StegoImage result = null;
-
-			try {
-				result = encode(p, o);
+				encodeFile(args[0], args[1], args[2], o);
 			} catch (EncodingException e) {
 				log.error("Could not encode message.", e);
 				// System.exit(1);
 			}
-			try {
-				result.write(args[2]);
-			} catch (IllegalArgumentException e) {
-				log.error("Could not write result image.", e);
-				// System.exit(1);
-			} catch (IOException e) {
-				log.error("Could not write result image.", e);
-				// System.exit(1);
-			}
-
 			break;
 		// decoding
 		case 4:
 			LinkedHashMap<String, String> o2 = new LinkedHashMap<String, String>();
 			o2.put("startbits", args[2]);
 			o2.put("endbits", args[3]);
+			// the message is written to disk while it is retrieved
+			o2.put("output", args[1]);
 			StegoImage si2 = null;
-			Message msg2 = null;
+			BufferedImage bi2 = null;
 
 			try {
-				BufferedImage bi = ImageUtility.readImage(args[0]);
-				si2 = new StegoImage(bi, args[0]);
+				bi2 = ImageUtility.readLargeImage(args[0]);
+				si2 = StegoImage.wrap(bi2, args[0]);
 			} catch (IllegalArgumentException e) {
 				log.error("Could not create stegoimage.", e);
 				// System.exit(1);
@@ -139,19 +114,12 @@ public class LsbImpl implements SteganographicTechnique {
 			}
 
 			try {
-				msg2 = decode(si2, o2);
+				decode(si2, o2);
 			} catch (DecodingException e) {
 				log.error("Could not decode message.", e);
 				// System.exit(1);
-			}
-			try {
-				msg2.writeBytesToFile(args[1]);
-			} catch (IllegalArgumentException e) {
-				log.error("Could not write result image.", e);
-				// System.exit(1);
-			} catch (IOException e) {
-				log.error("Could not write result image.", e);
-				// System.exit(1);
+			} finally {
+				ImageUtility.dispose(bi2);
 			}
 			break;
 		case 1:
@@ -167,6 +135,142 @@ public class LsbImpl implements SteganographicTechnique {
 		}
 	}
 
+	/**
+	 * Hides a message file in a cover file and writes the resulting image.
+	 * PNG covers written to PNG images are streamed row by row (see
+	 * {@link StreamingPngEncoder}), other covers are read whole - into a
+	 * memory-mapped raster if they are too large for the heap.
+	 * 
+	 * @param coverPath
+	 *            Filepath to the cover image.
+	 * @param messagePath
+	 *            Filepath to the message.
+	 * @param outputPath
+	 *            Filepath of the resulting image.
+	 * @param options
+	 *            Options for this method containing startbits and endbits
+	 * @return Number of hidden bytes.
+	 * @throws EncodingException
+	 *             If any of the files could not be read or written, or the
+	 *             message could not be hidden.
+	 */
+	public long encodeFile(String coverPath, String messagePath,
+			String outputPath, LinkedHashMap<String, String> options)
+			throws EncodingException {
+		boolean streaming;
+		try {
+			streaming = "png".equalsIgnoreCase(FileUtility
+					.getFileFormat(outputPath))
+					&& StreamingPngEncoder.isSupported(coverPath);
+		} catch (IOException e) {
+			throw new EncodingException("Could not create stegoimage.", e);
+		}
+
+		Message msg;
+		try {
+			// the payload is pulled from disk while it is embedded
+			msg = Message.stream(messagePath);
+		} catch (IOException e) {
+			throw new EncodingException("Could not create message object.", e);
+		}
+		try {
+			if (streaming) {
+				StreamingPngEncoder encoder = new StreamingPngEncoder(
+						Integer.parseInt(options.get("startbits")),
+						Integer.parseInt(options.get("endbits")));
+				encoder.setPool(pool);
+				encoder.encode(coverPath, msg, outputPath);
+				log.info("Finished streaming LSB encoding. Number of encoded bytes: "
+						+ msg.getSize());
+				return msg.getSize();
+			}
+
+			BufferedImage bi;
+			try {
+				// covers too large for the heap are mapped from disk
+				bi = ImageUtility.readLargeImage(coverPath);
+			} catch (IOException e) {
+				throw new EncodingException("Could not create stegoimage.", e);
+			}
+			try {
+				StegoImage si = StegoImage.wrap(bi, coverPath);
+				StegoImage result = encode(new StegoPackage(si, msg), options);
+				try {
+					result.write(outputPath);
+				} catch (IOException e) {
+					throw new EncodingException("Could not write result image.",
+							e);
+				}
+				return msg.getSize();
+			} finally {
+				// the message is embedded into the cover itself
+				ImageUtility.dispose(bi);
+			}
+		} finally {
+			try {
+				msg.close();
+			} catch (IOException e) {
+				log.error("Could not close message file.", e);
+			}
+		}
+	}
+
+	/**
+	 * Runs the batch mode of the command line, in which many covers are
+	 * encoded by a fixed number of workers. With <code>--batch-virtual</code>
+	 * every job runs on a virtual thread, the number of threads limits the
+	 * embedding and a pixel budget the covers decoded at once. With
+	 * <code>--batch-pipeline</code> covers are decoded, embedded and written by
+	 * separate stages of that many threads each.
+	 * 
+	 * @param args
+	 *            Arguments of the command line, starting with
+	 *            <code>--batch</code>, <code>--batch-virtual</code> or
+	 *            <code>--batch-pipeline</code>.
+	 */
+	private static void runBatch(String[] args) {
+		List<BatchEncoder.Job> jobs;
+		int bitsArg;
+		try {
+			if (args.length == 4 || args.length == 5) {
+				jobs = BatchEncoder.readManifest(args[1]);
+				bitsArg = 2;
+			} else if (args.length == 7 || args.length == 8) {
+				jobs = BatchEncoder.listDirectory(args[1], args[2], args[3],
+						args[4]);
+				bitsArg = 5;
+			} else {
+				System.out.println("Unsupported option");
+				printUsage();
+				return;
+			}
+		} catch (IOException e) {
+			log.error("Could not list the jobs of the batch.", e);
+			return;
+		}
+
+		BatchEncoder.Summary summary;
+		try {
+			int threads = args.length > bitsArg + 2 ? Integer
+					.parseInt(args[bitsArg + 2]) : Runtime.getRuntime()
+					.availableProcessors();
+			int startBits = Integer.parseInt(args[bitsArg]);
+			int endBits = Integer.parseInt(args[bitsArg + 1]);
+			if (args[0].equals("--batch-pipeline")) {
+				BatchPipeline pipeline = new BatchPipeline(startBits, endBits);
+				pipeline.setStageThreads(threads, threads, threads);
+				summary = pipeline.run(jobs);
+			} else {
+				summary = new BatchEncoder(startBits, endBits, threads,
+						args[0].equals("--batch-virtual")).run(jobs);
+			}
+		} catch (IllegalArgumentException e) {
+			log.error("Invalid batch options.", e);
+			return;
+		}
+		System.out.print(summary);
+	}
+
 	/**
 	 * Prints usage to console.
 	 */
@@ -177,6 +281,16 @@ public class LsbImpl implements SteganographicTechnique {
 						+ "                         <path to result image> <startbits> <endbits>\n"
 						+ "Decoding: vsl-module-lsb <path to image> <path to result message> \n"
 						+ "                         <startbits> <endbits> \n"
+						+ "Batch:    vsl-module-lsb --batch <path to manifest> <startbits> <endbits> \n"
+						+ "                         [threads]\n"
+						+ "          vsl-module-lsb --batch <cover directory> <glob> <path to message> \n"
+						+ "                         <result directory> <startbits> <endbits> [threads]\n"
+						+ "manifest - one job per line: <image> TAB <message> TAB <result image> \n"
+						+ "--batch-virtual instead of --batch runs every job on a virtual thread, \n"
+						+ "          threads then only limits the embedding, a pixel budget \n"
+						+ "          limits the covers decoded at once \n"
+						+ "--batch-pipeline decodes, embeds and writes in separate stages of \n"
+						+ "          threads each \n"
 						+ "startbits - the start bit position for possible bits (0-7 integer) \n"
 						+ "endbits - the end bit position for possible bits (0-7 integer)");
 	}
@@ -184,6 +298,18 @@ public class LsbImpl implements SteganographicTechnique {
 	public LsbImpl() {
 	}
 
+	/**
+	 * Sets the pool on which messages are embedded and extracted in parallel.
+	 * Without a pool (the default) encoding and decoding run in the calling
+	 * thread. Both ways produce the same results.
+	 * 
+	 * @param pool
+	 *            Pool for parallel coding or <code>null</code>.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
 	/**
 	 * Encodes an image with the given message. The start and end positions for
 	 * possible hits should be zero based - i.e. the first bit is 0. This is
@@ -219,57 +345,67 @@ public class LsbImpl implements SteganographicTechnique {
 		// assign in the start and end bits.
 		startBits = startbits;
 		endBits = endbits;
-		bitCounter = 0;
 		Message message = p.getMessage();
 		StegoImage cimage = p.getImage();
-		Shot sh;
-		bitCounter = 0;
 		layers = cimage.getLayerCount();
 		bitsPerLayer = (endBits - startBits) + 1;
-		maxBits = cimage.getHeight() * cimage.getWidth() * bitsPerLayer
+		maxBits = (long) cimage.getHeight() * cimage.getWidth() * bitsPerLayer
 				* layers;
 		int messagesize = (int) message.getSize();
 
 		// check the message fill actually fit
-		if ((messagesize * 8) + 32 > maxBits) {
+		if ((messagesize * 8L) + 32 > maxBits) {
 			throw new EncodingException("Message is too big "
 					+ "for this image. Maximum size for "
 					+ "this configuration [B]: " + (maxBits - 32) / 8);
 		}
 
-		// put the size in the first 32 bits
-		for (int i = 0; i < 32; i++) {
-			// generate a valid shot
-			sh = getNextShot(cimage.getWidth());
-			// put in the next size bit...
-			boolean bit = ((messagesize >> i) & 0x1) == 0x1;
-
-			cimage.setPixelBit(sh.getX(), sh.getY(), sh.getLayer(),
-					sh.getBitPosition(), bit);
-		}
-
-		// now we can start embedding the message into the cover
-		while (!message.isFinished()) {
-			sh = getNextShot(cimage.getWidth());
-
-			boolean bit;
+		if (RasterEmbedder.isSupported(cimage)) {
+			// write whole bytes straight into the data buffer
+			RasterEmbedder embedder = new RasterEmbedder(cimage, startBits,
+					endBits);
 			try {
-				bit = message.nextBit();
-			} catch (IOException e) {
+				if (pool != null) {
+					embedder.embed(message, messagesize, pool);
+				} else {
+					embedder.embed(message, messagesize);
+				}
+			} catch (UncheckedIOException e) {
 				throw new EncodingException("IOException occured while "
-						+ "fetching next bit of the message", e);
+						+ "fetching next bit of the message", e.getCause());
+			}
+		} else {
+			ShotCursor sh = new ShotCursor(cimage.getWidth(), layers,
+					startBits, endBits);
+
+			// put the size in the first 32 bits
+			for (int i = 0; i < 32; i++) {
+				// put in the next size bit...
+				boolean bit = ((messagesize >> i) & 0x1) == 0x1;
+
+				cimage.setPixelBit(sh.getX(), sh.getY(), sh.getLayer(),
+						sh.getBitPosition(), bit);
+				sh.advance();
+			}
+
+			// now we can start embedding the message into the cover
+			while (!message.isFinished()) {
+				boolean bit;
+				try {
+					bit = message.nextBit();
+				} catch (IOException e) {
+					throw new EncodingException("IOException occured while "
+							+ "fetching next bit of the message", e);
+				}
+				cimage.setPixelBit(sh.getX(), sh.getY(), sh.getLayer(),
+						sh.getBitPosition(), bit);
+				sh.advance();
 			}
-			cimage.setPixelBit(sh.getX(), sh.getY(), sh.getLayer(),
-					sh.getBitPosition(), bit);
 		}
 		log.info("Finished LSB encoding. Number of encoded bytes: "
 				+ messagesize);
 		// now the message is hidden inside the image.
-		try {
-			return new StegoImage(cimage.getImage(), cimage.getPath());
-		} catch (IOException e) {
-			throw new EncodingException("Could not create final image", e);
-		}
+		return StegoImage.wrap(cimage, cimage.getPath());
 
 	}
 
@@ -280,7 +416,9 @@ public class LsbImpl implements SteganographicTechnique {
 	 *            Image with hidden content.
 	 * @param options
 	 *            Options for this LSB technique, containing startbits and
-	 *            endbits
+	 *            endbits. With an <code>output</code> path the message is
+	 *            streamed to that file as it is retrieved instead of being
+	 *            held in memory.
 	 * @return Message which was hidden in given image
 	 * @throws pl.edu.zut.wi.vsl.commons.steganography.DecodingException
 	 */
@@ -309,89 +447,116 @@ public class LsbImpl implements SteganographicTechnique {
 		endBits = endbits;
 		layers = simage.getLayerCount();
 		bitsPerLayer = (endBits - startBits) + 1;
-		maxBits = simage.getHeight() * simage.getWidth() * bitsPerLayer
+		maxBits = (long) simage.getHeight() * simage.getWidth() * bitsPerLayer
 				* layers;
-		Shot sh;
-		int size = 0;
-		bitCounter = 0;
-
-		// get the size - in the first 32 hidden bits
-		for (int i = 0; i < 32; i++) {
+		RasterExtractor extractor = null;
+		ShotCursor sh = null;
+		int size2 = 0;
 
-			sh = getNextShot(simage.getWidth());
-			int bit = simage.getPixelBit(sh.getX(), sh.getY(), sh.getLayer(),
-					sh.getBitPosition());
-			size = size << 1 | bit;
-		}
+		if (RasterExtractor.isSupported(simage)) {
+			// read whole bytes straight from the data buffer
+			extractor = new RasterExtractor(simage, startBits, endBits);
+			size2 = extractor.readSize();
+		} else {
+			int size = 0;
+			sh = new ShotCursor(simage.getWidth(), layers, startBits, endBits);
+
+			// get the size - in the first 32 hidden bits
+			for (int i = 0; i < 32; i++) {
+
+				int bit = simage.getPixelBit(sh.getX(), sh.getY(),
+						sh.getLayer(), sh.getBitPosition());
+				sh.advance();
+				size = size << 1 | bit;
+			}
 
-		// reverse it as it was retrieved backwards
-		int size2 = 0;
-		for (int j = 0; j < 32; j++) {
-			size2 = size2 << 1 | ((size >> j) & 0x1);
+			// reverse it as it was retrieved backwards
+			for (int j = 0; j < 32; j++) {
+				size2 = size2 << 1 | ((size >> j) & 0x1);
+			}
 		}
 
-		if (size2 * 8 + 32 > maxBits) {
+		if (size2 * 8L + 32 > maxBits) {
 			throw new DecodingException("Recovered message size is wrong: "
 					+ size2 + ". Parameters are wrong or image was distorted.");
 		}
 
+		// make sure that the message isn't bigger than it's supposed to be
+		// before a file is opened for it
+		long imagespace = ((((long) simage.getWidth() * simage.getHeight()) * simage
+				.getLayerCount()) * ((endBits - startBits) + 1));
+
+		if (size2 * 8L >= imagespace || size2 < 0) {
+			throw new DecodingException("Message is bigger than "
+					+ "supposed to be");
+		}
+
 		Message rmess = null;
+		Object output = options.get("output");
 		log.info("Decoding, size of message [B]:" + size2);
 		try {
-			rmess = new Message(size2);
+			rmess = output != null ? Message.sink(output.toString(), size2)
+					: new Message(size2);
 		} catch (IOException e) {
 			throw new DecodingException("Could not create message", e);
 		}
 
 		// multiply by 8 to get then number of bits
-		size2 = size2 * 8;
-
-		// make sure that the message isn't bigger than it's supposed to be
-		long imagespace = (((simage.getWidth() * simage.getHeight()) * simage
-				.getLayerCount()) * ((endBits - startBits) + 1));
+		long bits = size2 * 8L;
 
-		if (size2 >= imagespace || size2 < 0) {
-			throw new DecodingException("Message is bigger than "
-					+ "supposed to be");
-		}
-		// start retrieving and writing out the message
-		for (int k = 0; k < size2; k++) {
-
-			sh = getNextShot(simage.getWidth());
-			try {
-				rmess.setNext((simage.getPixelBit(sh.getX(), sh.getY(),
-						sh.getLayer(), sh.getBitPosition())) == 0x1);
-			} catch (IOException e) {
-				throw new DecodingException("IOException occured during "
-						+ "retrieving and writing out the message", e);
+		boolean retrieved = false;
+		try {
+			if (extractor != null) {
+				// fill the message with whole bytes
+				extractor.read(rmess, size2, pool);
+			} else {
+				// start retrieving and writing out the message
+				for (long k = 0; k < bits; k++) {
+					rmess.setNext((simage.getPixelBit(sh.getX(), sh.getY(),
+							sh.getLayer(), sh.getBitPosition())) == 0x1);
+					sh.advance();
+				}
+			}
+			rmess.close();
+			retrieved = true;
+		} catch (IOException e) {
+			throw new DecodingException("IOException occured during "
+					+ "retrieving and writing out the message", e);
+		} catch (UncheckedIOException e) {
+			throw new DecodingException("IOException occured during "
+					+ "retrieving and writing out the message", e.getCause());
+		} finally {
+			if (!retrieved) {
+				discard(rmess, output);
 			}
-
 		}
 
 		return rmess;
 	}
 
 	/**
-	 * Gets the next shot on the image.
+	 * Closes a message whose retrieval failed and deletes the truncated file
+	 * it was written to, if any.
 	 * 
-	 * @param width
-	 *            The width of the image.
-	 * @return The next shot to make.
+	 * @param message
+	 *            The message being retrieved.
+	 * @param output
+	 *            The file the message was written to, or <code>null</code>.
 	 */
-	private Shot getNextShot(int width) {
-		if (bitCounter > maxBits) {
-			return null;
+	private void discard(Message message, Object output) {
+		try {
+			message.close();
+		} catch (IOException e) {
+			log.error("Could not close message file.", e);
+		}
+		if (output != null) {
+			try {
+				Files.deleteIfExists(Paths.get(output.toString()));
+			} catch (IOException e) {
+				log.error("Could not delete incomplete message file "
+						+ output + ".", e);
+			}
 		}
-		int plane = startBits + ((int) bitCounter / maxBits);
-		int rangeupto = (int) (bitCounter % (bitsPerLayer * layers));
-		int tmp = (int) (bitCounter - rangeupto) / (bitsPerLayer * layers);
-		int xrow = tmp % width;
-		int yrow = (tmp - xrow) / width;
-
-		bitCounter++;
-		return new Shot(xrow, yrow, plane + rangeupto % bitsPerLayer, rangeupto
-				/ bitsPerLayer);
-
 	}
 
 }
\ No newline at end of file
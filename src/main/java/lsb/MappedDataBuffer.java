@@ -0,0 +1,200 @@
+package main.java.lsb;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Byte <code>DataBuffer</code> kept in a memory-mapped temporary file instead
+ * of the heap.
+ * <p>
+ * Every band of the image is stored in its own bank, i.e. its own mapped
+ * region of the file, so an image may hold up to
+ * <code>Integer.MAX_VALUE</code> pixels whatever the number of bands. Only the
+ * pages which are in use are resident, the operating system writes the others
+ * back to the file, so images far larger than the heap can be processed. The
+ * buffer must be closed once the image is no longer used, which unmaps the
+ * file and deletes it; a file that could not be deleted is deleted when the
+ * virtual machine exits.
+ * <p>
+ * Samples are read and written with absolute <code>get</code> and
+ * <code>put</code> calls, so threads working on different pixels may share
+ * the buffer.
+ */
+public class MappedDataBuffer extends DataBuffer implements Closeable {
+
+	/** Mapped regions, one per bank, <code>null</code> once closed. */
+	private MappedByteBuffer[] banks;
+
+	/** Temporary file holding the banks. */
+	private final File file;
+
+	/**
+	 * Creates a data buffer on the given mapped regions.
+	 *
+	 * @param banks
+	 *            Mapped regions, one per bank.
+	 * @param size
+	 *            Number of elements of each bank.
+	 * @param file
+	 *            Temporary file holding the banks.
+	 */
+	private MappedDataBuffer(MappedByteBuffer[] banks, int size, File file) {
+		super(TYPE_BYTE, size, banks.length);
+		this.banks = banks;
+		this.file = file;
+	}
+
+	/**
+	 * Creates a data buffer backed by a new temporary file.
+	 *
+	 * @param size
+	 *            Number of elements of each bank.
+	 * @param numBanks
+	 *            Number of banks.
+	 * @param directory
+	 *            Directory of the temporary file, <code>null</code> for the
+	 *            default temporary directory.
+	 * @return Data buffer filled with zeros.
+	 * @throws IOException
+	 *             If the file could not be created or mapped.
+	 */
+	public static MappedDataBuffer create(int size, int numBanks,
+			File directory) throws IOException {
+		File file = File.createTempFile("stego", ".raster", directory);
+		file.deleteOnExit();
+		// a mapped file cannot be deleted on Windows, so it is deleted by
+		// close() once unmapped rather than when the channel is closed
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			MappedByteBuffer[] banks = new MappedByteBuffer[numBanks];
+			for (int b = 0; b < numBanks; b++) {
+				// the mapping stays valid after the channel is closed
+				banks[b] = channel.map(FileChannel.MapMode.READ_WRITE,
+						(long) b * size, size);
+			}
+			return new MappedDataBuffer(banks, size, file);
+		} catch (IOException e) {
+			channel.close();
+			file.delete();
+			throw e;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Creates an image with 8 bit samples on a mapped data buffer. Bands are
+	 * grey, grey and alpha, red, green and blue or red, green, blue and alpha,
+	 * depending on their number.
+	 *
+	 * @param width
+	 *            Width of the image.
+	 * @param height
+	 *            Height of the image.
+	 * @param bands
+	 *            Number of bands, from 1 to 4.
+	 * @param directory
+	 *            Directory of the temporary file, <code>null</code> for the
+	 *            default temporary directory.
+	 * @return Image of type <code>TYPE_CUSTOM</code>.
+	 * @throws IllegalArgumentException
+	 *             If the number of bands is not supported or the image has
+	 *             too many pixels.
+	 * @throws IOException
+	 *             If the file could not be created or mapped.
+	 */
+	public static BufferedImage createImage(int width, int height, int bands,
+			File directory) throws IllegalArgumentException, IOException {
+		if (bands < 1 || bands > 4) {
+			throw new IllegalArgumentException("Unsupported number of bands: "
+					+ bands);
+		}
+		if ((long) width * height > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Image is too large: " + width
+					+ "x" + height);
+		}
+		boolean alpha = bands == 2 || bands == 4;
+		int[] bits = new int[bands];
+		Arrays.fill(bits, 8);
+		ColorModel cm = new ComponentColorModel(
+				ColorSpace.getInstance(bands < 3 ? ColorSpace.CS_GRAY
+						: ColorSpace.CS_sRGB), bits, alpha, false,
+				alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE,
+				TYPE_BYTE);
+		BandedSampleModel sm = new BandedSampleModel(TYPE_BYTE, width, height,
+				bands);
+		WritableRaster raster = Raster.createWritableRaster(sm,
+				create(width * height, bands, directory), null);
+		return new BufferedImage(cm, raster, false, null);
+	}
+
+	/**
+	 * Unmaps the banks and deletes the temporary file. The buffer, and any
+	 * image on it, must not be used any more, neither during nor after the
+	 * call.
+	 */
+	@Override
+	public synchronized void close() {
+		if (banks == null) {
+			return;
+		}
+		MappedByteBuffer[] mapped = banks;
+		banks = null;
+		for (MappedByteBuffer bank : mapped) {
+			unmap(bank);
+		}
+		// left to deleteOnExit if the mapping is still held, e.g. when the
+		// buffers could not be unmapped
+		file.delete();
+	}
+
+	/**
+	 * Releases the mapping of a region right away instead of when it is
+	 * garbage collected, through the cleaner of the JDK. Nothing is done if
+	 * the cleaner is not available.
+	 * 
+	 * @param buffer
+	 *            Mapped region.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(
+					unsafe, buffer);
+		} catch (ReflectiveOperationException e) {
+			// the region is unmapped once it is garbage collected
+		} catch (RuntimeException e) {
+			// e.g. access denied by a security manager
+		}
+	}
+
+	@Override
+	public int getElem(int bank, int i) {
+		return banks[bank].get(i) & 0xff;
+	}
+
+	@Override
+	public void setElem(int bank, int i, int val) {
+		banks[bank].put(i, (byte) val);
+	}
+}
@@ -19,21 +19,27 @@
  */
 package main.java.lsb;
 
-import java.io.FileInputStream;
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Class representing object to hide.
  * 
  * @author Michal Wegrzyn
  */
-public class Message implements Serializable {
+public class Message implements Serializable, Closeable {
 
 	/** For serialization. */
 	private static final long serialVersionUID = -5847927342425612984L;
+	/** Size of the window through which a streamed message is read or written. */
+	private static final int WINDOW_SIZE = 1 << 16;
 	/** The path to the message (on disk). */
 	private String path;
 	/** A count of the number of bits left in this byte. */
@@ -50,6 +56,15 @@ public class Message implements Serializable {
 	private int pos;
 	/** Size of the message. */
 	private long size;
+	/** Channel of a streamed message, <code>null</code> if held in memory. */
+	private transient FileChannel channel;
+	/**
+	 * Bytes of a streamed message following the current byte, or bytes not
+	 * yet written to disk.
+	 */
+	private transient ByteBuffer window;
+	/** Tells whether a streamed message is retrieved to disk. */
+	private transient boolean sink;
 
 	/**
 	 * Creates a new message to embedd (that will be inserted into the image).
@@ -60,20 +75,51 @@ public class Message implements Serializable {
 	public Message(String filePath) throws FileNotFoundException, IOException {
 
 		this();
-		count = 8;
 		path = filePath;
 		msg = FileUtility.getBytesFromFile(path);
 		size = msg.length;
-
-		FileInputStream msgFile = new FileInputStream(filePath);
-		// get the first byte
-		int status = msgFile.read(buffer);
-		msgFile.close();
-		if (status == -1) {
+		if (size == 0) {
 			throw new IOException("File is empty!");
 		}
 	}
 
+	/**
+	 * Creates a new message to embedd, streamed from disk.
+	 * <p>
+	 * Unlike {@link #Message(String)} the content is not loaded into memory.
+	 * Bytes are pulled through a small window of a <code>FileChannel</code>
+	 * as the message is consumed, so the size of the message is bound by the
+	 * capacity of the image only. The message must be closed after use.
+	 * 
+	 * @param filePath
+	 *            The path to the message on disk.
+	 * @return Message reading the given file.
+	 * @throws IOException
+	 *             If the file could not be opened or is empty.
+	 */
+	public static Message stream(String filePath) throws IOException {
+		Message message = new Message();
+		message.path = filePath;
+		message.channel = FileChannel.open(Paths.get(filePath),
+				StandardOpenOption.READ);
+		try {
+			message.size = message.channel.size();
+			if (message.size == 0) {
+				throw new IOException("File is empty!");
+			}
+			if (message.size > Integer.MAX_VALUE) {
+				throw new IOException(
+						"Cannot create message - file is to large");
+			}
+		} catch (IOException e) {
+			message.channel.close();
+			throw e;
+		}
+		message.window = ByteBuffer.allocate(WINDOW_SIZE);
+		message.window.limit(0);
+		return message;
+	}
+
 	/**
 	 * Creates a new message to retrieve (that will be retrieved from the
 	 * image).
@@ -92,6 +138,38 @@ public class Message implements Serializable {
 		}
 	}
 
+	/**
+	 * Creates a new message to retrieve, streamed to disk.
+	 * <p>
+	 * Unlike {@link #Message(int)} no buffer for the whole content is
+	 * allocated. Retrieved bytes are collected in a fixed-size direct buffer
+	 * and written to the file whenever it fills up, so messages larger than
+	 * the heap can be retrieved. The message must be closed after use, which
+	 * writes the remaining bytes.
+	 * 
+	 * @param filePath
+	 *            The path to the file that receives the message. An existing
+	 *            file is overwritten.
+	 * @param bufferSize
+	 *            the size of message that will be retrieved in bytes.
+	 * @return Message writing the given file.
+	 * @throws IOException
+	 *             If the file could not be opened.
+	 */
+	public static Message sink(String filePath, int bufferSize)
+			throws IOException {
+		Message message = new Message();
+		message.path = filePath;
+		message.size = bufferSize;
+		message.sink = true;
+		message.channel = FileChannel.open(Paths.get(filePath),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		message.window = ByteBuffer.allocateDirect(Math.min(WINDOW_SIZE,
+				Math.max(1, bufferSize)));
+		return message;
+	}
+
 	/**
 	 * Creates new Message from byte array.
 	 * 
@@ -139,22 +217,95 @@ public class Message implements Serializable {
 		if (finished) {
 			throw new IOException("File reading has finished!");
 		}
+		if (count == 0) {
+			// get another byte
+			buffer[0] = byteAt(pos);
+			count = 8;
+		}
 		// have byte, must manipulate to get bits
 		boolean bit = (((buffer[0] >> (--count)) & 0x1) == 0x1);
 
-		if (count == 0) {
-			// get another byte
-			if (++pos < msg.length) {
-				buffer[0] = msg[pos];
-				count = 8;
-			} else {
-				finished = true;
-			}
+		if (count == 0 && ++pos >= size) {
+			finished = true;
 		}
 
 		return bit;
 	}
 
+	/**
+	 * Gives the byte of the message at the given position. A streamed message
+	 * must be read in order.
+	 * 
+	 * @param index
+	 *            Position of the byte.
+	 * @return Byte of the message.
+	 * @throws IOException
+	 *             If the byte could not be read from disk.
+	 */
+	private byte byteAt(int index) throws IOException {
+		if (channel == null) {
+			return msg[index];
+		}
+		if (!window.hasRemaining()) {
+			window.clear();
+			window.limit((int) Math.min(window.capacity(), size - index));
+			readFully(window, index);
+			window.flip();
+		}
+		return window.get();
+	}
+
+	/**
+	 * Reads bytes of the message at the given position, independently of the
+	 * bits consumed by {@link #nextBit()}. Streamed messages are read with
+	 * positional reads of the channel, so several threads may read different
+	 * parts of the message at once.
+	 * 
+	 * @param position
+	 *            Position of the first byte in the message.
+	 * @param dst
+	 *            Array to which bytes are written.
+	 * @param off
+	 *            Offset of the first byte in the array.
+	 * @param len
+	 *            Maximal number of bytes to read.
+	 * @return Number of bytes read, less than <code>len</code> only at the end
+	 *         of the message.
+	 * @throws IOException
+	 *             If the bytes could not be read from disk.
+	 */
+	public int read(long position, byte[] dst, int off, int len)
+			throws IOException {
+		len = (int) Math.max(0, Math.min(len, size - position));
+		if (channel == null) {
+			System.arraycopy(msg, (int) position, dst, off, len);
+		} else {
+			readFully(ByteBuffer.wrap(dst, off, len), position);
+		}
+		return len;
+	}
+
+	/**
+	 * Fills the remaining part of the buffer from the channel.
+	 * 
+	 * @param dst
+	 *            Buffer to fill.
+	 * @param position
+	 *            Position in the file of the first byte to read.
+	 * @throws IOException
+	 *             If the file ends before the buffer is filled.
+	 */
+	private void readFully(ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			int read = channel.read(dst, position);
+			if (read < 0) {
+				throw new IOException("Could not completely read file "
+						+ path);
+			}
+			position += read;
+		}
+	}
+
 	/**
 	 * Sets the next bit of the output stream.
 	 * <p>
@@ -186,8 +337,16 @@ public class Message implements Serializable {
 		ibuffer = ibuffer << 1 | newbit;
 		if (++count == 8) {
 			// get another byte
-			if (pos < msg.length) {
-				msg[pos++] = (byte) ibuffer;
+			if (pos < size) {
+				if (channel == null) {
+					msg[pos] = (byte) ibuffer;
+				} else {
+					window.put((byte) ibuffer);
+					if (!window.hasRemaining()) {
+						flush();
+					}
+				}
+				pos++;
 				count = 0;
 				ibuffer = 0;
 			} else {
@@ -196,6 +355,53 @@ public class Message implements Serializable {
 		}
 	}
 
+	/**
+	 * Appends whole bytes to the output stream, after the bytes set so far.
+	 * Must not be mixed with a partly set byte.
+	 * 
+	 * @param src
+	 *            Array with the bytes to write.
+	 * @param off
+	 *            Offset of the first byte in the array.
+	 * @param len
+	 *            Number of bytes to write.
+	 * @throws IOException
+	 *             If the bytes do not fit in the message, or there was an I/O
+	 *             Error.
+	 */
+	public void write(byte[] src, int off, int len) throws IOException {
+		if (pos + (long) len > size) {
+			throw new IOException("File has finished writing!");
+		}
+		if (channel == null) {
+			System.arraycopy(src, off, msg, pos, len);
+		} else {
+			for (int end = off + len; off < end;) {
+				int n = Math.min(end - off, window.remaining());
+				window.put(src, off, n);
+				off += n;
+				if (!window.hasRemaining()) {
+					flush();
+				}
+			}
+		}
+		pos += len;
+	}
+
+	/**
+	 * Writes the collected bytes of a streamed message to disk.
+	 * 
+	 * @throws IOException
+	 *             If the bytes could not be written.
+	 */
+	private void flush() throws IOException {
+		window.flip();
+		while (window.hasRemaining()) {
+			channel.write(window);
+		}
+		window.clear();
+	}
+
 	/**
 	 * Gives the size of the message.
 	 * 
@@ -208,7 +414,8 @@ public class Message implements Serializable {
 	/**
 	 * Return content of the message.
 	 * 
-	 * @return byte[] of the message.
+	 * @return byte[] of the message, <code>null</code> if the message is
+	 *         streamed from disk.
 	 */
 	public byte[] getBytes() {
 		return msg;
@@ -221,6 +428,18 @@ public class Message implements Serializable {
 	 */
 	public void setBytes(byte[] content) {
 		msg = content;
+		size = content.length;
+	}
+
+	/**
+	 * Tells whether the content is streamed from disk instead of being held in
+	 * memory.
+	 * 
+	 * @return <code>true</code> if the message was created with
+	 *         {@link #stream(String)} or {@link #sink(String, int)}.
+	 */
+	public boolean isStreamed() {
+		return channel != null;
 	}
 
 	/**
@@ -256,10 +475,29 @@ public class Message implements Serializable {
 	 */
 	public void prepareMessage() {
 		finished = false;
-		buffer[0] = msg[0];
 		ibuffer = 0;
 		pos = 0;
-		count = 8;
+		count = 0;
+		if (window != null) {
+			window.limit(0);
+		}
+	}
+
+	/**
+	 * Releases the file of a streamed message, writing out the bytes retrieved
+	 * so far. Does nothing for messages held in memory.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel != null && channel.isOpen()) {
+			try {
+				if (sink) {
+					flush();
+				}
+			} finally {
+				channel.close();
+			}
+		}
 	}
 
 }
@@ -0,0 +1,186 @@
+package main.java.lsb;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Direct view of the sample data backing a <code>StegoImage</code>.
+ * <p>
+ * The view resolves, once per image, where each layer used by the LSB
+ * technique lives inside the raster's <code>DataBuffer</code>: the element
+ * offset of the layer relative to the pixel and the bit shift of the layer
+ * inside that element. Layer 0 is blue, 1 is green and 2 is red, exactly as
+ * <code>StegoImage.getPixelBit</code> sees them through <code>getRGB</code>,
+ * so bulk access through this view is bit-identical to the per-pixel path.
+ * <p>
+ * Only image types for which <code>getRGB</code>/<code>setRGB</code> are
+ * lossless round trips are supported, plus custom grey or sRGB images with
+ * 8 bit banded samples (e.g. on a {@link MappedDataBuffer}), whose layers
+ * live in separate banks; {@link #of(StegoImage)} returns <code>null</code>
+ * for all the others.
+ */
+class PackedRaster {
+
+	/** Width of the image in pixels. */
+	final int width;
+	/** Height of the image in pixels. */
+	final int height;
+	/** Number of layers used for hiding. */
+	final int layers;
+	/** Backing array for packed int images, <code>null</code> otherwise. */
+	final int[] intData;
+	/** Backing array for interleaved byte images, <code>null</code> otherwise. */
+	final byte[] byteData;
+	/** Backing buffer for banded images, <code>null</code> otherwise. */
+	final DataBuffer bankData;
+	/** Element index of pixel (0,0). */
+	final int origin;
+	/** Number of elements between two rows. */
+	final int scanlineStride;
+	/** Number of elements between two pixels of a row. */
+	final int pixelStride;
+	/** Element offset of each layer relative to its pixel. */
+	final int[] layerOffset;
+	/** Bit shift of each layer inside its element. */
+	final int[] layerShift;
+	/** Bank of each layer of a banded image. */
+	final int[] layerBank;
+
+	private PackedRaster(StegoImage image, int[] intData, byte[] byteData,
+			DataBuffer bankData, int origin, int scanlineStride,
+			int pixelStride, int[] layerOffset, int[] layerShift,
+			int[] layerBank) {
+		width = image.getWidth();
+		height = image.getHeight();
+		layers = layerOffset.length;
+		this.intData = intData;
+		this.byteData = byteData;
+		this.bankData = bankData;
+		this.origin = origin;
+		this.scanlineStride = scanlineStride;
+		this.pixelStride = pixelStride;
+		this.layerOffset = layerOffset;
+		this.layerShift = layerShift;
+		this.layerBank = layerBank;
+	}
+
+	/**
+	 * Creates a direct view of the given image.
+	 *
+	 * @param image
+	 *            Image which data buffer should be accessed.
+	 * @return View of the image data or <code>null</code> if the image type
+	 *         is not supported.
+	 */
+	static PackedRaster of(StegoImage image) {
+		WritableRaster raster = image.getRaster();
+		SampleModel sm = raster.getSampleModel();
+		DataBuffer db = raster.getDataBuffer();
+		int tx = raster.getSampleModelTranslateX();
+		int ty = raster.getSampleModelTranslateY();
+
+		switch (image.getType()) {
+		case BufferedImage.TYPE_INT_RGB:
+		case BufferedImage.TYPE_INT_ARGB:
+		case BufferedImage.TYPE_INT_BGR: {
+			if (!(db instanceof DataBufferInt)
+					|| !(sm instanceof SinglePixelPackedSampleModel)) {
+				return null;
+			}
+			SinglePixelPackedSampleModel spsm = (SinglePixelPackedSampleModel) sm;
+			int[] masks = spsm.getBitMasks();
+			int scanline = spsm.getScanlineStride();
+			// bands are R, G, B - layers are B, G, R
+			int[] shift = new int[3];
+			for (int l = 0; l < 3; l++) {
+				shift[l] = Integer.numberOfTrailingZeros(masks[2 - l]);
+			}
+			int origin = db.getOffset() + spsm.getOffset(-tx, -ty);
+			return new PackedRaster(image, ((DataBufferInt) db).getData(),
+					null, null, origin, scanline, 1, new int[3], shift,
+					new int[3]);
+		}
+		case BufferedImage.TYPE_3BYTE_BGR:
+		case BufferedImage.TYPE_4BYTE_ABGR:
+		case BufferedImage.TYPE_BYTE_GRAY:
+		case BufferedImage.TYPE_BYTE_INDEXED: {
+			if (!(db instanceof DataBufferByte)
+					|| !(sm instanceof ComponentSampleModel)
+					|| sm.getSampleSize(0) != 8) {
+				return null;
+			}
+			ComponentSampleModel csm = (ComponentSampleModel) sm;
+			int[] bandOffsets = csm.getBandOffsets();
+			int layers = image.getLayerCount();
+			int[] offset = new int[layers];
+			if (layers == 1) {
+				offset[0] = bandOffsets[0];
+			} else {
+				// bands are R, G, B(, A) - layers are B, G, R
+				for (int l = 0; l < 3; l++) {
+					offset[l] = bandOffsets[2 - l];
+				}
+			}
+			int origin = db.getOffset() + (-ty) * csm.getScanlineStride()
+					+ (-tx) * csm.getPixelStride();
+			return new PackedRaster(image, null,
+					((DataBufferByte) db).getData(), null, origin,
+					csm.getScanlineStride(), csm.getPixelStride(), offset,
+					new int[layers], new int[layers]);
+		}
+		case BufferedImage.TYPE_CUSTOM: {
+			int layers = image.getLayerCount();
+			if (db.getDataType() != DataBuffer.TYPE_BYTE
+					|| !(sm instanceof BandedSampleModel)
+					|| !(image.getColorModel() instanceof ComponentColorModel)
+					|| (layers == 3 && !image.getColorModel().getColorSpace()
+							.isCS_sRGB())) {
+				return null;
+			}
+			BandedSampleModel bsm = (BandedSampleModel) sm;
+			int[] bankIndices = bsm.getBankIndices();
+			int[] bank = new int[layers];
+			if (layers == 1) {
+				bank[0] = bankIndices[0];
+			} else {
+				// bands are R, G, B(, A) - layers are B, G, R
+				for (int l = 0; l < 3; l++) {
+					bank[l] = bankIndices[2 - l];
+				}
+			}
+			int origin = (-ty) * bsm.getScanlineStride() + (-tx);
+			for (int offset : bsm.getBandOffsets()) {
+				if (offset != 0) {
+					return null;
+				}
+			}
+			return new PackedRaster(image, null, null, db,
+					origin, bsm.getScanlineStride(), 1, new int[layers],
+					new int[layers], bank);
+		}
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Gives the element index of the given pixel.
+	 *
+	 * @param x
+	 *            The x position of the pixel.
+	 * @param y
+	 *            The y position of the pixel.
+	 * @return Index of the first element of the pixel in the backing array.
+	 */
+	int index(int x, int y) {
+		return origin + y * scanlineStride + x * pixelStride;
+	}
+}
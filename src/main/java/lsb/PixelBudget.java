@@ -0,0 +1,51 @@
+package main.java.lsb;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Number of decoded pixels which may still be taken by the covers of a batch.
+ * A single cover larger than the limit is let through once no other pixels
+ * are taken.
+ */
+class PixelBudget {
+
+	private final long limit;
+	/** Number of pixels taken. */
+	private long taken;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+
+	PixelBudget(long limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Takes pixels, waiting while they would exceed the limit and other
+	 * pixels are taken.
+	 */
+	void acquire(long pixels) throws InterruptedException {
+		lock.lock();
+		try {
+			while (taken > 0 && taken + pixels > limit) {
+				released.await();
+			}
+			taken += pixels;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives pixels back.
+	 */
+	void release(long pixels) {
+		lock.lock();
+		try {
+			taken -= pixels;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,410 @@
+package main.java.lsb;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Bulk embedding engine for the LSB technique.
+ * <p>
+ * Instead of writing one bit at a time through
+ * <code>StegoImage.setPixelBit</code>, the engine works directly on the
+ * <code>DataBuffer</code> of the image: message bytes are consumed in whole
+ * pixel-sized chunks and every touched element is read and written only once,
+ * using masks precomputed for the configured bit range. The layout of the
+ * hidden bits is exactly the one produced by the per-bit path (32 bit size
+ * header, LSB first, followed by the message bytes, MSB first), so images
+ * produced by both paths are identical.
+ * <p>
+ * Messages streamed from disk are read through a small window per worker, so
+ * they never need to be held in memory as a whole.
+ */
+public class RasterEmbedder {
+
+	/** Minimal number of pixels embedded by one worker. */
+	private static final int MIN_BAND_PIXELS = 1 << 16;
+	/** Size of the window through which a streamed message is read. */
+	private static final int WINDOW_SIZE = 1 << 16;
+
+	/** Image in which the message is hidden. */
+	private final StegoImage image;
+	/** Direct view of the image data. */
+	private final PackedRaster raster;
+	/** The start range for writable bits. */
+	private final int startBits;
+	/** Number of bits hidden in one layer of the image. */
+	private final int bitsPerLayer;
+	/** Number of bits hidden in one pixel of the image. */
+	private final int stride;
+	/** Mask of the bits of one layer group, not yet shifted. */
+	private final int groupMask;
+	/**
+	 * Bit-reversed layer groups shifted to the start bit. Bits of a group are
+	 * taken MSB first from the message but hidden from the start bit up.
+	 */
+	private final int[] reversed;
+
+	/**
+	 * Creates an embedding engine for the given image.
+	 *
+	 * @param image
+	 *            Image in which the message will be hidden. Must be supported
+	 *            by this engine.
+	 * @param startBits
+	 *            The start range for writable bits.
+	 * @param endBits
+	 *            The end range for writable bits.
+	 * @throws IllegalArgumentException
+	 *             If the image type is not supported.
+	 */
+	public RasterEmbedder(StegoImage image, int startBits, int endBits)
+			throws IllegalArgumentException {
+		this.image = image;
+		raster = PackedRaster.of(image);
+		if (raster == null) {
+			throw new IllegalArgumentException("Unsupported image type: "
+					+ image.getType());
+		}
+		this.startBits = startBits;
+		bitsPerLayer = (endBits - startBits) + 1;
+		stride = bitsPerLayer * raster.layers;
+		groupMask = (1 << bitsPerLayer) - 1;
+		reversed = new int[1 << bitsPerLayer];
+		for (int v = 0; v < reversed.length; v++) {
+			int r = 0;
+			for (int b = 0; b < bitsPerLayer; b++) {
+				r = r << 1 | ((v >> b) & 0x1);
+			}
+			reversed[v] = r << startBits;
+		}
+	}
+
+	/**
+	 * Tells whether the given image can be handled by this engine.
+	 *
+	 * @param image
+	 *            Image to examine.
+	 * @return <code>true</code> if the data buffer of the image can be
+	 *         accessed directly.
+	 */
+	public static boolean isSupported(StegoImage image) {
+		return PackedRaster.of(image) != null;
+	}
+
+	/**
+	 * Hides the size header and the message in the image.
+	 *
+	 * @param message
+	 *            Content of the message.
+	 * @param size
+	 *            Number of message bytes to hide.
+	 */
+	public void embed(byte[] message, int size) {
+		embed(new Message(message), size);
+	}
+
+	/**
+	 * Hides the size header and the message in the image.
+	 * 
+	 * @param message
+	 *            Message to hide, held in memory or streamed from disk.
+	 * @param size
+	 *            Number of message bytes to hide.
+	 * @throws UncheckedIOException
+	 *             If a streamed message could not be read.
+	 */
+	public void embed(Message message, int size) throws UncheckedIOException {
+		image.invalidateJpegBytes();
+		embedRows(message, size, 0, usedRows(size));
+	}
+
+	/**
+	 * Hides the size header and the message in the image, embedding bands of
+	 * rows concurrently. The result is identical to {@link #embed(byte[], int)}
+	 * as every band starts at the bit offset its first pixel has in the
+	 * serial layout.
+	 *
+	 * @param message
+	 *            Content of the message.
+	 * @param size
+	 *            Number of message bytes to hide.
+	 * @param pool
+	 *            Pool on which the bands are embedded.
+	 */
+	public void embed(byte[] message, int size, ForkJoinPool pool) {
+		embed(new Message(message), size, pool);
+	}
+
+	/**
+	 * Hides the size header and the message in the image, embedding bands of
+	 * rows concurrently. Every band reads its part of a streamed message on
+	 * its own.
+	 * 
+	 * @param message
+	 *            Message to hide, held in memory or streamed from disk.
+	 * @param size
+	 *            Number of message bytes to hide.
+	 * @param pool
+	 *            Pool on which the bands are embedded.
+	 * @throws UncheckedIOException
+	 *             If a streamed message could not be read.
+	 */
+	public void embed(Message message, int size, ForkJoinPool pool)
+			throws UncheckedIOException {
+		image.invalidateJpegBytes();
+		embedRows(message, size, 0, usedRows(size), pool);
+	}
+
+	/**
+	 * Gives the number of rows which hold hidden bits.
+	 *
+	 * @param size
+	 *            Number of message bytes to hide.
+	 * @return Number of rows, counting from the top of the image.
+	 */
+	private int usedRows(int size) {
+		return usedRows(size, stride, raster.width, raster.height);
+	}
+
+	/**
+	 * Gives the number of rows which hold hidden bits. Rows below them are
+	 * left as in the cover by both the bulk and the per-bit path.
+	 * 
+	 * @param size
+	 *            Number of message bytes to hide.
+	 * @param stride
+	 *            Number of bits hidden in one pixel.
+	 * @param width
+	 *            The width of the image.
+	 * @param height
+	 *            The height of the image.
+	 * @return Number of rows, counting from the top of the image.
+	 */
+	static int usedRows(int size, int stride, int width, int height) {
+		long totalBits = 32L + 8L * size;
+		long pixels = (totalBits + stride - 1) / stride;
+		return (int) Math.min(height, (pixels + width - 1) / width);
+	}
+
+	/**
+	 * Hides the part of the size header and message that falls into the given
+	 * rows.
+	 *
+	 * @param message
+	 *            Content of the message.
+	 * @param size
+	 *            Number of message bytes to hide.
+	 * @param fromRow
+	 *            First row to write (inclusive).
+	 * @param toRow
+	 *            Last row to write (exclusive).
+	 * @throws UncheckedIOException
+	 *             If a streamed message could not be read.
+	 */
+	void embedRows(Message message, int size, int fromRow, int toRow)
+			throws UncheckedIOException {
+		long totalBits = 32L + 8L * size;
+		int header = Integer.reverse(size);
+		long written = (long) fromRow * raster.width * stride;
+
+		// bytes of the message from windowStart on, the whole of it if in memory
+		byte[] window = message.getBytes();
+		long windowStart = 0;
+		int windowLen = size;
+		if (window == null) {
+			window = new byte[Math.min(WINDOW_SIZE, size)];
+			windowLen = 0;
+		}
+
+		// start in the middle of the byte the band begins with
+		long next = written >>> 3;
+		long acc = 0;
+		int accBits = -(int) (written & 0x7);
+
+		for (int y = fromRow; y < toRow && written < totalBits; y++) {
+			int idx = raster.index(0, y);
+			for (int x = 0; x < raster.width && written < totalBits; x++) {
+				// refill the accumulator with whole bytes
+				while (accBits < stride) {
+					int b;
+					if (next < 4) {
+						b = (header >>> (24 - 8 * (int) next)) & 0xff;
+					} else if (next - 4 < size) {
+						long at = next - 4;
+						if (at - windowStart >= windowLen) {
+							windowStart = at;
+							windowLen = read(message, at, window);
+						}
+						b = window[(int) (at - windowStart)] & 0xff;
+					} else {
+						b = 0;
+					}
+					next++;
+					acc = acc << 8 | b;
+					accBits += 8;
+				}
+				accBits -= stride;
+				int chunk = (int) (acc >>> accBits);
+				long left = totalBits - written;
+				if (left >= stride) {
+					writePixel(idx, chunk);
+				} else {
+					writePartialPixel(idx, chunk, (int) left);
+				}
+				written += stride;
+				idx += raster.pixelStride;
+			}
+		}
+	}
+
+	/**
+	 * Hides the part of the size header and message that falls into the given
+	 * rows, embedding bands of them on the given pool. The calling thread only
+	 * waits for the pool.
+	 *
+	 * @param message
+	 *            Content of the message.
+	 * @param size
+	 *            Number of message bytes to hide.
+	 * @param fromRow
+	 *            First row to write (inclusive).
+	 * @param toRow
+	 *            Last row to write (exclusive).
+	 * @param pool
+	 *            Pool on which the bands are embedded.
+	 * @throws UncheckedIOException
+	 *             If a streamed message could not be read.
+	 */
+	void embedRows(Message message, int size, int fromRow, int toRow,
+			ForkJoinPool pool) throws UncheckedIOException {
+		pool.invoke(new BandTask(message, size, fromRow, toRow));
+	}
+
+	/**
+	 * Reads the next window of a streamed message.
+	 * 
+	 * @param message
+	 *            Message to read.
+	 * @param position
+	 *            Position of the first byte to read.
+	 * @param window
+	 *            Array to which bytes are written.
+	 * @return Number of bytes read.
+	 * @throws UncheckedIOException
+	 *             If the message could not be read.
+	 */
+	private static int read(Message message, long position, byte[] window)
+			throws UncheckedIOException {
+		try {
+			return message.read(position, window, 0, window.length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes all bits of one pixel.
+	 *
+	 * @param idx
+	 *            Element index of the pixel.
+	 * @param chunk
+	 *            Bits to hide in the pixel, first bit in the highest position.
+	 */
+	private void writePixel(int idx, int chunk) {
+		int layers = raster.layers;
+		if (raster.intData != null) {
+			int clear = 0;
+			int bits = 0;
+			for (int l = 0; l < layers; l++) {
+				int group = (chunk >>> ((layers - 1 - l) * bitsPerLayer))
+						& groupMask;
+				bits |= reversed[group] << raster.layerShift[l];
+				clear |= (groupMask << startBits) << raster.layerShift[l];
+			}
+			raster.intData[idx] = (raster.intData[idx] & ~clear) | bits;
+		} else if (raster.byteData != null) {
+			int clear = ~(groupMask << startBits);
+			for (int l = 0; l < layers; l++) {
+				int group = (chunk >>> ((layers - 1 - l) * bitsPerLayer))
+						& groupMask;
+				int e = idx + raster.layerOffset[l];
+				raster.byteData[e] = (byte) ((raster.byteData[e] & clear) | reversed[group]);
+			}
+		} else {
+			int clear = ~(groupMask << startBits);
+			for (int l = 0; l < layers; l++) {
+				int group = (chunk >>> ((layers - 1 - l) * bitsPerLayer))
+						& groupMask;
+				int bank = raster.layerBank[l];
+				raster.bankData.setElem(bank, idx,
+						(raster.bankData.getElem(bank, idx) & clear)
+								| reversed[group]);
+			}
+		}
+	}
+
+	/**
+	 * Writes the first bits of one pixel, leaving the rest untouched.
+	 *
+	 * @param idx
+	 *            Element index of the pixel.
+	 * @param chunk
+	 *            Bits to hide in the pixel, first bit in the highest position.
+	 * @param count
+	 *            Number of bits to write.
+	 */
+	private void writePartialPixel(int idx, int chunk, int count) {
+		for (int s = 0; s < count; s++) {
+			boolean bit = ((chunk >>> (stride - 1 - s)) & 0x1) == 0x1;
+			int layer = s / bitsPerLayer;
+			int pos = startBits + s % bitsPerLayer + raster.layerShift[layer];
+			int e = idx + raster.layerOffset[layer];
+			if (raster.intData != null) {
+				raster.intData[e] = bit ? raster.intData[e] | (1 << pos)
+						: raster.intData[e] & ~(1 << pos);
+			} else if (raster.byteData != null) {
+				raster.byteData[e] = bit ? (byte) (raster.byteData[e] | (1 << pos))
+						: (byte) (raster.byteData[e] & ~(1 << pos));
+			} else {
+				int bank = raster.layerBank[layer];
+				int elem = raster.bankData.getElem(bank, e);
+				raster.bankData.setElem(bank, e, bit ? elem | (1 << pos)
+						: elem & ~(1 << pos));
+			}
+		}
+	}
+
+	/**
+	 * Embeds a band of rows, splitting it while it is big enough to be worth
+	 * sharing between workers.
+	 */
+	private class BandTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Message message;
+		private final int size;
+		private final int fromRow;
+		private final int toRow;
+
+		BandTask(Message message, int size, int fromRow, int toRow) {
+			this.message = message;
+			this.size = size;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+		}
+
+		@Override
+		protected void compute() {
+			int rows = toRow - fromRow;
+			if (rows < 2 || (long) rows * raster.width <= MIN_BAND_PIXELS) {
+				embedRows(message, size, fromRow, toRow);
+			} else {
+				int mid = fromRow + rows / 2;
+				invokeAll(new BandTask(message, size, fromRow, mid),
+						new BandTask(message, size, mid, toRow));
+			}
+		}
+	}
+}
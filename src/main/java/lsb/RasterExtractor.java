@@ -0,0 +1,312 @@
+package main.java.lsb;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Bulk extraction engine for the LSB technique.
+ * <p>
+ * The counterpart of {@link RasterEmbedder}: hidden bits are read straight
+ * from the <code>DataBuffer</code> of the image, one pixel-sized chunk at a
+ * time, and assembled into whole bytes without going through
+ * <code>StegoImage.getPixelBit</code> and <code>Message.setNext</code>. The
+ * hidden stream is read in order - first the 32 bit size header, then the
+ * message bytes, which may be split into chunks extracted concurrently.
+ */
+public class RasterExtractor {
+
+	/** Minimal number of bytes extracted by one worker. */
+	private static final int MIN_CHUNK_BYTES = 1 << 15;
+	/** Number of bytes extracted at once into a message streamed to disk. */
+	private static final int SINK_CHUNK_BYTES = 1 << 20;
+
+	/** Direct view of the image data. */
+	private final PackedRaster raster;
+	/** The start range for writable bits. */
+	private final int startBits;
+	/** Number of bits hidden in one layer of the image. */
+	private final int bitsPerLayer;
+	/** Number of bits hidden in one pixel of the image. */
+	private final int stride;
+	/** Mask of the bits of one layer group, not yet shifted. */
+	private final int groupMask;
+	/**
+	 * Bit-reversed layer groups. Bits of a group are hidden from the start bit
+	 * up but belong to the message MSB first.
+	 */
+	private final int[] reversed;
+	/** Position of the next hidden bit to read. */
+	private long position;
+
+	/**
+	 * Creates an extraction engine for the given image.
+	 *
+	 * @param image
+	 *            Image with hidden content. Must be supported by this engine.
+	 * @param startBits
+	 *            The start range for writable bits.
+	 * @param endBits
+	 *            The end range for writable bits.
+	 * @throws IllegalArgumentException
+	 *             If the image type is not supported.
+	 */
+	public RasterExtractor(StegoImage image, int startBits, int endBits)
+			throws IllegalArgumentException {
+		raster = PackedRaster.of(image);
+		if (raster == null) {
+			throw new IllegalArgumentException("Unsupported image type: "
+					+ image.getType());
+		}
+		this.startBits = startBits;
+		bitsPerLayer = (endBits - startBits) + 1;
+		stride = bitsPerLayer * raster.layers;
+		groupMask = (1 << bitsPerLayer) - 1;
+		reversed = new int[1 << bitsPerLayer];
+		for (int v = 0; v < reversed.length; v++) {
+			int r = 0;
+			for (int b = 0; b < bitsPerLayer; b++) {
+				r = r << 1 | ((v >> b) & 0x1);
+			}
+			reversed[v] = r;
+		}
+	}
+
+	/**
+	 * Tells whether the given image can be handled by this engine.
+	 *
+	 * @param image
+	 *            Image to examine.
+	 * @return <code>true</code> if the data buffer of the image can be
+	 *         accessed directly.
+	 */
+	public static boolean isSupported(StegoImage image) {
+		return PackedRaster.of(image) != null;
+	}
+
+	/**
+	 * Reads the size of the hidden message. Must be called before the
+	 * message is read.
+	 *
+	 * @return Size of the message in bytes, as stored in the image.
+	 */
+	public int readSize() {
+		byte[] header = new byte[4];
+		read(header, 0, header.length);
+		// the size is stored LSB first
+		return Integer.reverse(BitUtility.byteArrayToInt(header));
+	}
+
+	/**
+	 * Reads the next hidden bytes.
+	 *
+	 * @param dst
+	 *            Array to which bytes are written.
+	 * @param off
+	 *            Offset of the first byte in the array.
+	 * @param len
+	 *            Number of bytes to read.
+	 * @throws IllegalStateException
+	 *             If the image does not hold that many bits.
+	 */
+	public void read(byte[] dst, int off, int len)
+			throws IllegalStateException {
+		extract(dst, off, len, position);
+		position += 8L * len;
+	}
+
+	/**
+	 * Reads the next hidden bytes, extracting chunks of them concurrently.
+	 * Every chunk starts on a byte boundary of the hidden stream and is
+	 * written to its own place in the destination array, so the bytes come
+	 * out in the same order as with {@link #read(byte[], int, int)}.
+	 *
+	 * @param dst
+	 *            Array to which bytes are written.
+	 * @param off
+	 *            Offset of the first byte in the array.
+	 * @param len
+	 *            Number of bytes to read.
+	 * @param pool
+	 *            Pool on which the chunks are extracted.
+	 * @throws IllegalStateException
+	 *             If the image does not hold that many bits.
+	 */
+	public void read(byte[] dst, int off, int len, ForkJoinPool pool)
+			throws IllegalStateException {
+		pool.invoke(new ChunkTask(dst, off, len, position));
+		position += 8L * len;
+	}
+
+	/**
+	 * Reads the next hidden bytes into a message. A message held in memory is
+	 * filled directly, a message streamed to disk receives the bytes chunk by
+	 * chunk, so only one chunk is held in memory.
+	 * 
+	 * @param message
+	 *            Message receiving the bytes.
+	 * @param len
+	 *            Number of bytes to read.
+	 * @throws IOException
+	 *             If the bytes could not be written to the message.
+	 * @throws IllegalStateException
+	 *             If the image does not hold that many bits.
+	 */
+	public void read(Message message, int len) throws IOException,
+			IllegalStateException {
+		read(message, len, null);
+	}
+
+	/**
+	 * Reads the next hidden bytes into a message, extracting chunks of them
+	 * concurrently.
+	 * 
+	 * @param message
+	 *            Message receiving the bytes.
+	 * @param len
+	 *            Number of bytes to read.
+	 * @param pool
+	 *            Pool on which the chunks are extracted, <code>null</code> to
+	 *            extract them in the calling thread.
+	 * @throws IOException
+	 *             If the bytes could not be written to the message.
+	 * @throws IllegalStateException
+	 *             If the image does not hold that many bits.
+	 */
+	public void read(Message message, int len, ForkJoinPool pool)
+			throws IOException, IllegalStateException {
+		if (!message.isStreamed()) {
+			readChunk(message.getBytes(), 0, len, pool);
+			return;
+		}
+		byte[] chunk = new byte[Math.min(len, SINK_CHUNK_BYTES)];
+		for (int done = 0; done < len;) {
+			int n = Math.min(chunk.length, len - done);
+			readChunk(chunk, 0, n, pool);
+			message.write(chunk, 0, n);
+			done += n;
+		}
+	}
+
+	/**
+	 * Reads the next hidden bytes, in parallel if a pool is given.
+	 * 
+	 * @param dst
+	 *            Array to which bytes are written.
+	 * @param off
+	 *            Offset of the first byte in the array.
+	 * @param len
+	 *            Number of bytes to read.
+	 * @param pool
+	 *            Pool on which the chunks are extracted or <code>null</code>.
+	 */
+	private void readChunk(byte[] dst, int off, int len, ForkJoinPool pool) {
+		if (pool != null) {
+			read(dst, off, len, pool);
+		} else {
+			read(dst, off, len);
+		}
+	}
+
+	/**
+	 * Extracts hidden bytes starting at the given bit of the hidden stream.
+	 *
+	 * @param dst
+	 *            Array to which bytes are written.
+	 * @param off
+	 *            Offset of the first byte in the array.
+	 * @param len
+	 *            Number of bytes to read.
+	 * @param firstBit
+	 *            Position of the first bit in the hidden stream.
+	 * @throws IllegalStateException
+	 *             If the image does not hold that many bits.
+	 */
+	void extract(byte[] dst, int off, int len, long firstBit)
+			throws IllegalStateException {
+		long pixel = firstBit / stride;
+		int x = (int) (pixel % raster.width);
+		int y = (int) (pixel / raster.width);
+
+		// skip the bits of the first pixel that precede the first bit
+		long acc = 0;
+		int accBits = -(int) (firstBit % stride);
+		int end = off + len;
+		while (off < end) {
+			while (accBits >= 8 && off < end) {
+				accBits -= 8;
+				dst[off++] = (byte) (acc >>> accBits);
+			}
+			if (off < end) {
+				if (y >= raster.height) {
+					throw new IllegalStateException(
+							"No more hidden bits in image");
+				}
+				acc = acc << stride | readPixel(raster.index(x, y));
+				accBits += stride;
+				if (++x == raster.width) {
+					x = 0;
+					y++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads all bits of one pixel.
+	 *
+	 * @param idx
+	 *            Element index of the pixel.
+	 * @return Bits hidden in the pixel, first bit in the highest position.
+	 */
+	private int readPixel(int idx) {
+		int chunk = 0;
+		for (int l = 0; l < raster.layers; l++) {
+			int elem;
+			if (raster.intData != null) {
+				elem = raster.intData[idx];
+			} else if (raster.byteData != null) {
+				elem = raster.byteData[idx + raster.layerOffset[l]];
+			} else {
+				elem = raster.bankData.getElem(raster.layerBank[l], idx);
+			}
+			chunk = chunk << bitsPerLayer
+					| reversed[(elem >>> (raster.layerShift[l] + startBits))
+							& groupMask];
+		}
+		return chunk;
+	}
+
+	/**
+	 * Extracts a chunk of bytes, splitting it while it is big enough to be
+	 * worth sharing between workers.
+	 */
+	private class ChunkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] dst;
+		private final int off;
+		private final int len;
+		private final long firstBit;
+
+		ChunkTask(byte[] dst, int off, int len, long firstBit) {
+			this.dst = dst;
+			this.off = off;
+			this.len = len;
+			this.firstBit = firstBit;
+		}
+
+		@Override
+		protected void compute() {
+			if (len <= MIN_CHUNK_BYTES) {
+				extract(dst, off, len, firstBit);
+			} else {
+				int half = len / 2;
+				invokeAll(new ChunkTask(dst, off, half, firstBit),
+						new ChunkTask(dst, off + half, len - half, firstBit
+								+ 8L * half));
+			}
+		}
+	}
+}
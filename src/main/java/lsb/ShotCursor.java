@@ -0,0 +1,106 @@
+package main.java.lsb;
+
+/**
+ * A reusable cursor over the shots of a cover image.
+ * <p>
+ * A shot is a (x,y) co-ordinate, layer and bit position that define the bit
+ * of the image that is changed (or read) next. The cursor walks the shots for
+ * every pixel, row by row, every layer and within every layer every bit from
+ * the start to the end of the configured range. Positions are kept as
+ * incremental counters, so moving to the next shot neither allocates nor
+ * divides.
+ */
+class ShotCursor {
+
+	/** Width of the image. */
+	private final int width;
+	/** Number of image layers. */
+	private final int layers;
+	/** The start range for writable bits. */
+	private final int startBits;
+	/** The end range for writable bits. */
+	private final int endBits;
+	/** The x position of the current shot. */
+	private int xPos;
+	/** The y position of the current shot. */
+	private int yPos;
+	/** The layer of the current shot. */
+	private int layer;
+	/** The bit position of the current shot. */
+	private int bitPos;
+
+	/**
+	 * Creates a new cursor placed on the first shot of the image.
+	 *
+	 * @param width
+	 *            The width of the image.
+	 * @param layers
+	 *            Number of image layers.
+	 * @param startBits
+	 *            The start range for writable bits.
+	 * @param endBits
+	 *            The end range for writable bits.
+	 */
+	ShotCursor(int width, int layers, int startBits, int endBits) {
+		this.width = width;
+		this.layers = layers;
+		this.startBits = startBits;
+		this.endBits = endBits;
+		xPos = 0;
+		yPos = 0;
+		layer = 0;
+		bitPos = startBits;
+	}
+
+	/**
+	 * Moves the cursor to the next shot.
+	 */
+	void advance() {
+		if (++bitPos > endBits) {
+			bitPos = startBits;
+			if (++layer == layers) {
+				layer = 0;
+				if (++xPos == width) {
+					xPos = 0;
+					yPos++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the x position of the current shot.
+	 *
+	 * @return The x position of the current shot.
+	 */
+	int getX() {
+		return xPos;
+	}
+
+	/**
+	 * Gets the y position of the current shot.
+	 *
+	 * @return The y position of the current shot.
+	 */
+	int getY() {
+		return yPos;
+	}
+
+	/**
+	 * Gets the layer of the current shot.
+	 *
+	 * @return The layer of the current shot.
+	 */
+	int getLayer() {
+		return layer;
+	}
+
+	/**
+	 * Gets the bit position of the current shot.
+	 *
+	 * @return The bit position of the current shot.
+	 */
+	int getBitPosition() {
+		return bitPos;
+	}
+}
@@ -20,8 +20,12 @@
 package main.java.lsb;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
 /**
  * An image that has had steganography applied (or probably will had). Used to
@@ -38,7 +42,10 @@ public class StegoImage extends BufferedImage {
 	private String imagePath;
 	/** Number of layers that this image has */
 	private final int layers;
-	/** Byte JPEG content of an image */
+	/**
+	 * Byte JPEG content of an image. Computed on first use and dropped when
+	 * the pixels change.
+	 */
 	private byte[] jpegBytes;
 
 	public StegoImage(File image) throws IOException {
@@ -51,8 +58,6 @@ public class StegoImage extends BufferedImage {
 
 		if ("jpeg".equalsIgnoreCase(format) || "jpg".equalsIgnoreCase(format)) {
 			jpegBytes = FileUtility.getBytesFromFile(image);
-		} else {
-			jpegBytes = ImageUtility.getBytes(this, "jpeg");
 		}
 	}
 
@@ -61,7 +66,7 @@ public class StegoImage extends BufferedImage {
 				.isAlphaPremultiplied(), null);
 		imagePath = source.getPath();
 		layers = source.getLayerCount();
-		jpegBytes = source.getJpegBytes();
+		jpegBytes = source.jpegBytes;
 	}
 
 	/**
@@ -79,7 +84,43 @@ public class StegoImage extends BufferedImage {
 				.isAlphaPremultiplied(), null);
 		imagePath = path == null ? DEFAULT_PATH : path;
 		layers = getLayerCount();
-		jpegBytes = ImageUtility.getBytes(this, "jpeg");
+	}
+
+	/**
+	 * Creates <code>StegoImage</code> instance on top of the given raster.
+	 * 
+	 * @param cm
+	 *            Color model of the image.
+	 * @param raster
+	 *            Raster of the image. It is used, not copied.
+	 * @param premultiplied
+	 *            Whether the color data are premultiplied with alpha.
+	 * @param path
+	 *            Filepath to the original image on the HDD.
+	 */
+	private StegoImage(ColorModel cm, WritableRaster raster,
+			boolean premultiplied, String path) {
+		super(cm, raster, premultiplied, null);
+		imagePath = path == null ? DEFAULT_PATH : path;
+		layers = getLayerCount();
+	}
+
+	/**
+	 * Creates <code>StegoImage</code> that adopts the raster of the given
+	 * <code>BufferedImage</code> instead of copying it. Pixel changes of the
+	 * returned image are visible in the source and vice versa, so the source
+	 * should not be used any more unless that is intended (e.g. a freshly
+	 * read cover, or an image that is only decoded).
+	 * 
+	 * @param source
+	 *            Source <code>BufferedImage</code>.
+	 * @param path
+	 *            Filepath to the original image on the HDD.
+	 * @return Image sharing the pixel data of the source.
+	 */
+	public static StegoImage wrap(BufferedImage source, String path) {
+		return new StegoImage(source.getColorModel(), source.getRaster(),
+				source.isAlphaPremultiplied(), path);
 	}
 
 	/**
@@ -101,7 +142,13 @@ public class StegoImage extends BufferedImage {
 		String format = FileUtility.getFileFormat(filename);
 
 		if ("jpeg".equalsIgnoreCase(format) || "jpg".equalsIgnoreCase(format)) {
-			FileUtility.writeFile(jpegBytes, filename);
+			byte[] bytes;
+			try {
+				bytes = getJpegBytes();
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			FileUtility.writeFile(bytes, filename);
 		}
 		ImageUtility.write(this, filename);
 	}
@@ -112,7 +159,9 @@ public class StegoImage extends BufferedImage {
 	 * The number of layers is determined by the colour depth of the image. If a
 	 * colour has a 24 bit colour depth, then the number of layers is 3, one for
 	 * each of red, green and blue. In contrast, if the colour depth is 8, 1
-	 * layer is returned.
+	 * layer is returned. Grey images, with or without alpha, have 1 layer
+	 * whether their pixels are held on the heap, in a mapped file or streamed,
+	 * so an image decodes the same way whichever way it was read.
 	 * <p>
 	 * To summarize, 24 bits = 3 layers, 16 bit = 3 layers, 8 bit = 1. Images
 	 * which do not have a deep enough set of colours return 0.
@@ -130,6 +179,11 @@ public class StegoImage extends BufferedImage {
 				|| type == BufferedImage.TYPE_USHORT_GRAY) {
 			// 8 bit images
 			return 1;
+		} else if (getColorModel() instanceof ComponentColorModel
+				&& getColorModel().getNumColorComponents() == 1) {
+			// grey images of other layouts, e.g. with alpha or on a mapped
+			// raster, wherever their samples are held
+			return 1;
 		} else {
 			// all other image types
 			return 3;
@@ -282,6 +336,7 @@ public class StegoImage extends BufferedImage {
 
 			// now set the pixel.
 			setRGB(xpos, ypos, newpixel);
+			jpegBytes = null;
 
 		} else if (layers == 1) {
 			// image with 1 layer (8 bit)
@@ -289,6 +344,7 @@ public class StegoImage extends BufferedImage {
 			byte b = (byte) pixel;
 			b = BitUtility.setBit(b, bitpos, newbit);
 			getRaster().setSample(xpos, ypos, 0, b);
+			jpegBytes = null;
 		} else {
 			throw new UnsupportedOperationException("Unsupported for this "
 					+ "image type");
@@ -325,10 +381,29 @@ public class StegoImage extends BufferedImage {
 	}
 
 	/**
+	 * Gives the JPEG content of this image, compressing it on first use.
+	 * 
 	 * @return the jpegBytes
+	 * @throws UncheckedIOException
+	 *             If the image could not be compressed.
 	 */
 	public byte[] getJpegBytes() {
+		if (jpegBytes == null) {
+			try {
+				jpegBytes = ImageUtility.getBytes(this, "jpeg");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
 		return jpegBytes;
 	}
 
+	/**
+	 * Drops the cached JPEG content. Must be called by code that changes the
+	 * pixels without going through {@link #setPixelBit}.
+	 */
+	void invalidateJpegBytes() {
+		jpegBytes = null;
+	}
+
 }
\ No newline at end of file
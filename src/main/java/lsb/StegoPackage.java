@@ -55,7 +55,9 @@ public class StegoPackage implements Serializable {
 
 	public StegoPackage(StegoPackage sp) {
 		if (sp.getMessage() != null) {
-			message = new Message(sp.getMessage().getBytes().clone());
+			// a streamed message is read from disk, there is no content to copy
+			message = sp.getMessage().isStreamed() ? sp.getMessage()
+					: new Message(sp.getMessage().getBytes().clone());
 		}
 		if (sp.getImage() != null) {
 			image = new StegoImage(sp.getImage());
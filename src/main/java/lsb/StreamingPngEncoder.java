@@ -0,0 +1,596 @@
+package main.java.lsb;
+
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.w3c.dom.Node;
+
+/**
+ * Row-streaming LSB encoder for PNG covers.
+ * <p>
+ * The LSB layout is row-major, so a message can be hidden while the cover is
+ * decoded. The cover is read by a PNG <code>ImageReader</code> in a
+ * background thread into a window of a few bands of rows; every band is
+ * embedded as soon as it is decoded and then handed to a PNG
+ * <code>ImageWriter</code>, which pulls it row by row in the calling thread.
+ * The reader waits while the window is full, so memory use depends on the
+ * width of the cover only, never on its height. The result is identical to
+ * encoding the fully decoded cover with {@link LsbImpl}.
+ * <p>
+ * Only non-interlaced PNG covers with 8 bit grey or RGB samples, with or
+ * without alpha, can be streamed (see {@link #isSupported(String)}).
+ * <p>
+ * The reader thread is virtual if the calling thread is, and neither thread
+ * holds a monitor while it waits for the other, so many encodings may run on
+ * virtual threads at once.
+ */
+public class StreamingPngEncoder {
+
+	/** Minimal number of pixels embedded and handed over at once. */
+	private static final int BAND_PIXELS = 1 << 16;
+
+	/** The start range for writable bits. */
+	private final int startBits;
+	/** The end range for writable bits. */
+	private final int endBits;
+	/** Pool on which bands are embedded, <code>null</code> for the reader. */
+	private ForkJoinPool pool;
+
+	/**
+	 * Creates a streaming encoder for the given bit range.
+	 *
+	 * @param startBits
+	 *            The start range for writable bits.
+	 * @param endBits
+	 *            The end range for writable bits.
+	 * @throws EncodingException
+	 *             If the bit range is not correct.
+	 */
+	public StreamingPngEncoder(int startBits, int endBits)
+			throws EncodingException {
+		// check the bit ranges.
+		if (startBits > 7 || startBits < 0) {
+			throw new EncodingException("Start bit range not in range 0-7!");
+		}
+		if (endBits > 7 || endBits < 0) {
+			throw new EncodingException("End bit range not in range 0-7!");
+		}
+		if (startBits > endBits) {
+			throw new EncodingException("End bit range must be "
+					+ "higher than start range!");
+		}
+		this.startBits = startBits;
+		this.endBits = endBits;
+	}
+
+	/**
+	 * Sets the pool on which bands are embedded. Without a pool (the default)
+	 * they are embedded in the reader thread.
+	 * 
+	 * @param pool
+	 *            Pool for the embedding or <code>null</code>.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Tells whether the given cover can be streamed.
+	 *
+	 * @param coverPath
+	 *            Filepath to the cover.
+	 * @return <code>true</code> for non-interlaced PNG covers with 8 bit grey
+	 *         or RGB samples.
+	 * @throws IOException
+	 *             If the cover could not be examined.
+	 */
+	public static boolean isSupported(String coverPath) throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream(new File(
+				coverPath));
+		if (in == null) {
+			throw new IOException("Could not open image " + coverPath);
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				return false;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				return isSupported(reader);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Tells whether the image of the given reader can be streamed.
+	 *
+	 * @param reader
+	 *            Reader with its input set.
+	 * @return <code>true</code> for non-interlaced PNG covers with 8 bit grey
+	 *         or RGB samples.
+	 * @throws IOException
+	 *             If the image could not be examined.
+	 */
+	private static boolean isSupported(ImageReader reader) throws IOException {
+		if (!"png".equalsIgnoreCase(reader.getFormatName())
+				|| !ImageUtility.isMappable(reader, reader.getImageTypes(0)
+						.next())) {
+			return false;
+		}
+		// interlaced rows are decoded several times, in passes
+		IIOMetadata metadata = reader.getImageMetadata(0);
+		String format = metadata.getNativeMetadataFormatName();
+		for (Node node = metadata.getAsTree(format).getFirstChild(); node != null; node = node
+				.getNextSibling()) {
+			if ("IHDR".equals(node.getNodeName())) {
+				Node interlace = node.getAttributes().getNamedItem(
+						"interlaceMethod");
+				return interlace == null
+						|| "none".equals(interlace.getNodeValue());
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hides the message in the cover and writes the result, streaming the
+	 * cover row by row.
+	 *
+	 * @param coverPath
+	 *            Filepath to the PNG cover.
+	 * @param message
+	 *            Message to hide, held in memory or streamed from disk.
+	 * @param outputPath
+	 *            Filepath of the resulting PNG image. An existing file is
+	 *            overwritten.
+	 * @throws EncodingException
+	 *             If the cover is not supported, the message does not fit or
+	 *             an I/O error occurred.
+	 */
+	public void encode(String coverPath, Message message, String outputPath)
+			throws EncodingException {
+		ImageInputStream in = null;
+		ImageReader reader = null;
+		try {
+			in = ImageIO.createImageInputStream(new File(coverPath));
+			if (in == null) {
+				throw new EncodingException("Could not open image "
+						+ coverPath);
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				throw new EncodingException("Unsupported image format: "
+						+ coverPath);
+			}
+			reader = readers.next();
+			reader.setInput(in, true, true);
+			if (!isSupported(reader)) {
+				throw new EncodingException("Could not stream image "
+						+ coverPath + " - only non-interlaced 8 bit grey or"
+						+ " RGB PNG images are supported");
+			}
+			encode(reader, message, outputPath);
+		} catch (IOException e) {
+			throw new EncodingException("IOException occured while "
+					+ "streaming the image", e);
+		} finally {
+			if (reader != null) {
+				reader.dispose();
+			}
+			try {
+				if (in != null) {
+					in.close();
+				}
+			} catch (IOException e) {
+				// nothing left to read
+			}
+		}
+	}
+
+	/**
+	 * Runs the pipeline on a supported cover.
+	 *
+	 * @param reader
+	 *            Reader of the cover.
+	 * @param message
+	 *            Message to hide.
+	 * @param outputPath
+	 *            Filepath of the resulting image.
+	 * @throws EncodingException
+	 *             If the message does not fit.
+	 * @throws IOException
+	 *             If the cover could not be read or the result written.
+	 */
+	private void encode(final ImageReader reader, final Message message,
+			String outputPath) throws EncodingException, IOException {
+		int width = reader.getWidth(0);
+		int height = reader.getHeight(0);
+		int bands = reader.getImageTypes(0).next().getSampleModel()
+				.getNumBands();
+		int bandRows = Math.max(1, Math.min(height, BAND_PIXELS / width));
+		final RowStream stream = new RowStream(width, height, bands, bandRows);
+
+		StegoImage cover = StegoImage.wrap(stream, outputPath);
+		long maxBits = (long) width * height * (endBits - startBits + 1)
+				* cover.getLayerCount();
+		final int size = (int) message.getSize();
+		if ((size * 8L) + 32 > maxBits) {
+			throw new EncodingException("Message is too big "
+					+ "for this image. Maximum size for "
+					+ "this configuration [B]: " + (maxBits - 32) / 8);
+		}
+		if (!RasterEmbedder.isSupported(cover)) {
+			throw new EncodingException("Could not stream image - its "
+					+ "samples cannot be embedded in place");
+		}
+		final RasterEmbedder embedder = new RasterEmbedder(cover, startBits,
+				endBits);
+
+		// decode and embed in the background
+		FutureTask<Void> producer = new FutureTask<Void>(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reader.addIIOReadUpdateListener(stream.new Producer(
+							embedder, message, size, pool));
+					ImageReadParam param = reader.getDefaultReadParam();
+					param.setDestination(stream);
+					reader.read(0, param);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} finally {
+					stream.finish();
+				}
+			}
+		}, null);
+		if (Thread.currentThread().isVirtual()) {
+			Thread.ofVirtual().name("png-stream-reader").start(producer);
+		} else {
+			Thread thread = new Thread(producer, "png-stream-reader");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		// encode in this thread
+		try {
+			write(stream, outputPath);
+		} catch (IOException | RuntimeException e) {
+			// stop the reader, if it failed first its failure is the cause
+			reader.abort();
+			stream.close();
+			getResult(producer);
+			throw e;
+		}
+		getResult(producer);
+	}
+
+	/**
+	 * Writes the streamed image to a PNG file.
+	 *
+	 * @param stream
+	 *            Streamed image.
+	 * @param outputPath
+	 *            Filepath of the resulting image.
+	 * @throws IOException
+	 *             If the image could not be written.
+	 */
+	private static void write(RowStream stream, String outputPath)
+			throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("png")
+				.next();
+		File file = new File(outputPath);
+		// like ImageIO.write, do not leave old content behind
+		file.delete();
+		ImageOutputStream out = ImageIO.createImageOutputStream(file);
+		try {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(stream, null, null), null);
+		} finally {
+			writer.dispose();
+			out.close();
+		}
+	}
+
+	/**
+	 * Waits for the reader thread and reports its failure.
+	 *
+	 * @param producer
+	 *            Task of the reader thread.
+	 * @throws IOException
+	 *             If the cover or a streamed message could not be read.
+	 */
+	private static void getResult(FutureTask<Void> producer)
+			throws IOException {
+		try {
+			producer.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading the image", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) cause).getCause();
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+
+	/**
+	 * Image of full size which holds only a window of its rows.
+	 * <p>
+	 * Rows are written by the reader and embedded band by band; the writer
+	 * takes them through {@link #getData(Rectangle)}, which waits until they
+	 * are ready. The window holds two bands, so the reader fills one band
+	 * while the writer drains the other.
+	 */
+	private static class RowStream extends BufferedImage {
+
+		/** Number of rows in one band. */
+		private final int bandRows;
+		/** Number of rows held by the window. */
+		private final int windowRows;
+		/** Number of rows which are embedded and may be written. */
+		private int ready;
+		/** Number of rows which were written and may be overwritten. */
+		private int consumed;
+		/** Tells whether the reader has stopped, normally or not. */
+		private boolean finished;
+		/** Tells whether the writer has stopped. */
+		private boolean closed;
+		/** Guards the counters and flags of the window. */
+		private final ReentrantLock lock = new ReentrantLock();
+		/** Signalled whenever the counters or flags change. */
+		private final Condition changed = lock.newCondition();
+
+		RowStream(int width, int height, int bands, int bandRows) {
+			super(colorModel(bands), Raster.createWritableRaster(
+					new BandedSampleModel(DataBuffer.TYPE_BYTE, width,
+							height, bands), new RingDataBuffer(width
+							* Math.min(height, 2 * bandRows), bands), null),
+					false, null);
+			this.bandRows = bandRows;
+			windowRows = Math.min(height, 2 * bandRows);
+		}
+
+		/**
+		 * Creates the color model for the given number of 8 bit bands.
+		 *
+		 * @param bands
+		 *            Number of bands, from 1 to 4.
+		 * @return Grey or sRGB color model, with alpha for 2 and 4 bands.
+		 */
+		private static ColorModel colorModel(int bands) {
+			boolean alpha = bands == 2 || bands == 4;
+			int[] bits = new int[bands];
+			Arrays.fill(bits, 8);
+			return new ComponentColorModel(
+					ColorSpace.getInstance(bands < 3 ? ColorSpace.CS_GRAY
+							: ColorSpace.CS_sRGB), bits, alpha, false,
+					alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE,
+					DataBuffer.TYPE_BYTE);
+		}
+
+		/**
+		 * Marks rows as ready and waits until the window has room for the
+		 * next band.
+		 *
+		 * @param rows
+		 *            Number of rows, counting from the top, that are ready.
+		 * @throws IOException
+		 *             If the writer has stopped.
+		 */
+		void publish(int rows) throws IOException {
+			lock.lock();
+			try {
+				ready = rows;
+				changed.signalAll();
+				while (!closed && rows + bandRows > consumed + windowRows
+						&& rows < getHeight()) {
+					try {
+						changed.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while streaming", e);
+					}
+				}
+				if (closed) {
+					throw new IOException("Image writing has stopped");
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Tells the writer that no more rows will come.
+		 */
+		void finish() {
+			lock.lock();
+			try {
+				finished = true;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Tells the reader that no more rows will be taken.
+		 */
+		void close() {
+			lock.lock();
+			try {
+				closed = true;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Gives a copy of the given rows, waiting until they are ready.
+		 */
+		@Override
+		public Raster getData(Rectangle rect) {
+			int end = rect.y + rect.height;
+			lock.lock();
+			try {
+				if (rect.y < consumed || end - consumed > windowRows) {
+					throw new IllegalStateException("Rows " + rect.y + "-"
+							+ end + " are not in the window");
+				}
+				while (ready < end && !finished) {
+					try {
+						changed.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException(
+								"Interrupted while streaming", e);
+					}
+				}
+				if (ready < end) {
+					throw new IllegalStateException(
+							"Image reading has stopped");
+				}
+				Raster data = super.getData(rect);
+				consumed = end;
+				changed.signalAll();
+				return data;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Embeds the message into every band once its rows are decoded.
+		 */
+		class Producer implements IIOReadUpdateListener {
+
+			private final RasterEmbedder embedder;
+			private final Message message;
+			private final int size;
+			private final ForkJoinPool pool;
+			/** Number of rows which were embedded. */
+			private int embedded;
+
+			Producer(RasterEmbedder embedder, Message message, int size,
+					ForkJoinPool pool) {
+				this.embedder = embedder;
+				this.message = message;
+				this.size = size;
+				this.pool = pool;
+			}
+
+			@Override
+			public void imageUpdate(ImageReader source, BufferedImage theImage,
+					int minX, int minY, int width, int height, int periodX,
+					int periodY, int[] bands) {
+				int rows = minY + height;
+				if (rows - embedded < bandRows && rows < getHeight()) {
+					return;
+				}
+				if (pool != null) {
+					embedder.embedRows(message, size, embedded, rows, pool);
+				} else {
+					embedder.embedRows(message, size, embedded, rows);
+				}
+				embedded = rows;
+				try {
+					publish(rows);
+				} catch (IOException e) {
+					source.abort();
+				}
+			}
+
+			@Override
+			public void passStarted(ImageReader source, BufferedImage theImage,
+					int pass, int minPass, int maxPass, int minX, int minY,
+					int periodX, int periodY, int[] bands) {
+			}
+
+			@Override
+			public void passComplete(ImageReader source, BufferedImage theImage) {
+			}
+
+			@Override
+			public void thumbnailPassStarted(ImageReader source,
+					BufferedImage theThumbnail, int pass, int minPass,
+					int maxPass, int minX, int minY, int periodX, int periodY,
+					int[] bands) {
+			}
+
+			@Override
+			public void thumbnailUpdate(ImageReader source,
+					BufferedImage theThumbnail, int minX, int minY, int width,
+					int height, int periodX, int periodY, int[] bands) {
+			}
+
+			@Override
+			public void thumbnailPassComplete(ImageReader source,
+					BufferedImage theThumbnail) {
+			}
+		}
+	}
+
+	/**
+	 * Byte data buffer with one bank per band that holds a window of rows.
+	 * Element <code>i</code> of a bank is stored at <code>i</code> modulo the
+	 * size of the window, so rows reuse the storage of the rows one window
+	 * above them.
+	 */
+	private static class RingDataBuffer extends DataBuffer {
+
+		private final byte[][] banks;
+
+		RingDataBuffer(int windowSize, int numBanks) {
+			super(TYPE_BYTE, windowSize, numBanks);
+			banks = new byte[numBanks][windowSize];
+		}
+
+		@Override
+		public int getElem(int bank, int i) {
+			return banks[bank][i % size] & 0xff;
+		}
+
+		@Override
+		public void setElem(int bank, int i, int val) {
+			banks[bank][i % size] = (byte) val;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package main.java.ssim;
+
+/**
+ * Differences between a cover and a stego image: their SSIM index, the error
+ * of their samples and the number of pixels and bits changed by the encoding.
+ * Colour images are compared by their red, green and blue samples.
+ */
+public class QualityReport {
+
+    private final double ssim;
+
+    private final double mse;
+
+    private final double peakValue;
+
+    private final int maxError;
+
+    private final long changedPixels;
+
+    private final long changedBits;
+
+    private final long pixels;
+
+    public QualityReport(double ssim, double mse, double peakValue, int maxError, long changedPixels,
+            long changedBits, long pixels) {
+        this.ssim = ssim;
+        this.mse = mse;
+        this.peakValue = peakValue;
+        this.maxError = maxError;
+        this.changedPixels = changedPixels;
+        this.changedBits = changedBits;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Gives the mean SSIM index, for colour images the mean of the red, green
+     * and blue indices.
+     *
+     * @return Mean SSIM index.
+     */
+    public double getSsim() {
+        return ssim;
+    }
+
+    /**
+     * Gives the mean squared error of all samples.
+     *
+     * @return Mean squared error.
+     */
+    public double getMse() {
+        return mse;
+    }
+
+    /**
+     * Gives the peak signal-to-noise ratio, relative to the largest value of a
+     * sample.
+     *
+     * @return PSNR in decibels, infinite if the images are equal.
+     */
+    public double getPsnr() {
+        if (mse == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return 10 * Math.log10(peakValue * peakValue / mse);
+    }
+
+    /**
+     * Gives the largest absolute difference of two samples.
+     *
+     * @return Maximum absolute error.
+     */
+    public int getMaxError() {
+        return maxError;
+    }
+
+    /**
+     * Gives the number of pixels of which at least one sample differs.
+     *
+     * @return Number of changed pixels.
+     */
+    public long getChangedPixels() {
+        return changedPixels;
+    }
+
+    /**
+     * Gives the number of bits that differ over all samples.
+     *
+     * @return Number of changed bits.
+     */
+    public long getChangedBits() {
+        return changedBits;
+    }
+
+    public long getPixels() {
+        return pixels;
+    }
+
+    @Override
+    public String toString() {
+        return "SSIM index: " + ssim + ", PSNR: " + getPsnr() + " dB, MSE: " + mse + ", max error: " + maxError
+                + ", changed pixels: " + changedPixels + " of " + pixels + ", changed bits: " + changedBits;
+    }
+}
@@ -0,0 +1,45 @@
+package main.java.ssim;
+
+/**
+ * SSIM indices of the red, green and blue channels of two colour images.
+ */
+public class RgbSsim {
+
+    private final double red;
+
+    private final double green;
+
+    private final double blue;
+
+    public RgbSsim(double red, double green, double blue) {
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+    }
+
+    public double getRed() {
+        return red;
+    }
+
+    public double getGreen() {
+        return green;
+    }
+
+    public double getBlue() {
+        return blue;
+    }
+
+    /**
+     * Gives the index of the whole image, the mean of the channel indices.
+     *
+     * @return Combined SSIM index.
+     */
+    public double getCombined() {
+        return (red + green + blue) / 3;
+    }
+
+    @Override
+    public String toString() {
+        return "SSIM index: " + getCombined() + " (R " + red + ", G " + green + ", B " + blue + ")";
+    }
+}
@@ -0,0 +1,1237 @@
+package main.java.ssim;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import main.java.lsb.ImageUtility;
+
+/**
+ * Computes SSIM indices with fixed options, for repeated comparisons such as
+ * batch quality checks.
+ * <p>
+ * Pixels are unpacked into <code>float</code> planes held, like all other
+ * intermediate data, in scratch buffers of the calling and computing threads.
+ * The buffers are reused by later comparisons of the same or smaller images,
+ * so after warm-up a comparison allocates nothing but its result. A calculator
+ * may be shared between threads.
+ */
+public class SsimCalculator {
+
+    /**
+     * Contribution of every value of the red, green and blue channels to the
+     * luma Y of {@link ImageUtility#rgb2ycbcr(int, int, int)}, without its
+     * offset of 16.
+     */
+    private static final double[][] LUMA = new double[3][256];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            LUMA[0][v] = ImageUtility.rgb2ycbcr(v, 0, 0)[ImageUtility.Y] - 16;
+            LUMA[1][v] = ImageUtility.rgb2ycbcr(0, v, 0)[ImageUtility.Y] - 16;
+            LUMA[2][v] = ImageUtility.rgb2ycbcr(0, 0, v)[ImageUtility.Y] - 16;
+        }
+    }
+
+    /** Number of downsampled rows of a band of a quality report. */
+    private static final int BAND_ROWS = 32;
+
+    /**
+     * Error sums of a band of a quality report: squared errors, maximum
+     * absolute error, changed pixels and changed bits.
+     */
+    private static final int ERRORS = 4;
+
+    /** Default number of rows of a tile of tiled comparisons. */
+    public static final int DEFAULT_TILE_ROWS = 256;
+
+    private final SsimEngine engine;
+
+    /** Factor by which both images are downsampled. */
+    private final int factor;
+
+    /** Pool on which strips and images are compared. */
+    private ForkJoinPool pool;
+
+    /** Number of downsampled rows held at once by tiled comparisons. */
+    private volatile int tileRows = DEFAULT_TILE_ROWS;
+
+    /**
+     * Creates a calculator. Later changes of the options do not affect it.
+     * Strips are computed on the common pool.
+     *
+     * @param options
+     *            Parameters of the index.
+     * @throws SsimException
+     *             If the options are out of range.
+     */
+    public SsimCalculator(SsimOptions options) throws SsimException {
+        options.validate();
+        engine = new SsimEngine(options.getWindow(), options.getK1(), options.getK2());
+        pool = ForkJoinPool.commonPool();
+        engine.setPool(pool);
+        factor = options.getDownsampling();
+    }
+
+    /**
+     * Sets the pool on which strips of rows, and the images of one-to-many
+     * comparisons, are computed, <code>null</code> to compute them in the
+     * calling thread.
+     *
+     * @param pool
+     *            Pool for parallel computation or <code>null</code>.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        engine.setPool(pool);
+    }
+
+    /**
+     * Sets the number of rows, after downsampling, that tiled comparisons
+     * hold at once.
+     *
+     * @param tileRows
+     *            Rows of a tile.
+     * @throws SsimException
+     *             If the number is not positive.
+     * @see #calculateTiledSsim(BufferedImage, BufferedImage, OutputStream)
+     */
+    public void setTileRows(int tileRows) throws SsimException {
+        if (tileRows < 1) {
+            throw new SsimException("The number of rows of a tile must be positive!");
+        }
+        this.tileRows = tileRows;
+    }
+
+    /**
+     * Computes the mean SSIM index of two grey images, or of two colour
+     * images the mean of the indices of their red, green and blue channels.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @return Mean SSIM index.
+     * @throws SsimException
+     *             If the images differ in size or depth or are neither both
+     *             grey nor both colour images.
+     * @see #calculateRgbSsim(BufferedImage, BufferedImage)
+     */
+    public double calculateSsim(BufferedImage coverImage, BufferedImage stegoImage) throws SsimException {
+        return calculateSsim(coverImage, stegoImage, null);
+    }
+
+    /**
+     * Computes the mean SSIM index of two grey images, or of two colour
+     * images the mean of the indices of their red, green and blue channels,
+     * together with the SSIM of every pixel of the downsampled images.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @param map
+     *            Array receiving the SSIM of every downsampled pixel row by
+     *            row, for colour images the mean of its channels, or
+     *            <code>null</code>.
+     * @return Mean SSIM index.
+     * @throws SsimException
+     *             If the images differ in size or depth, are neither both
+     *             grey nor both colour images or the map is too short.
+     * @see #downsample(BufferedImage)
+     */
+    public double calculateSsim(BufferedImage coverImage, BufferedImage stegoImage, float[] map)
+            throws SsimException {
+        checkSameShape(coverImage, stegoImage);
+        if (coverImage.getColorModel().getNumColorComponents() == 3) {
+            SsimScratch scratch = SsimScratch.acquire();
+            try {
+                double[] sums = calculateColour(coverImage, stegoImage, false, map, scratch);
+                double dimension = (double) scaledWidth(coverImage) * scaledHeight(coverImage);
+                return new RgbSsim(sums[0] / dimension, sums[1] / dimension, sums[2] / dimension).getCombined();
+            } finally {
+                scratch.release();
+            }
+        }
+        Raster cover = coverImage.getRaster();
+        Raster stego = stegoImage.getRaster();
+        if (coverImage.getColorModel().getNumColorComponents() != 1
+                || stegoImage.getColorModel().getNumColorComponents() != 1) {
+            throw new SsimException("Only grey and colour images are supported!");
+        }
+        int bits = cover.getSampleModel().getSampleSize(0);
+        if (bits != stego.getSampleModel().getSampleSize(0)) {
+            throw new SsimException("The images must have the same number of bits per pixel!");
+        }
+        int width = scaledWidth(coverImage);
+        int height = scaledHeight(coverImage);
+
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            scratch.single1[0] = scratch.plane1(0, width * height);
+            scratch.single2[0] = scratch.plane2(0, width * height);
+            readPlanes(coverImage, false, scratch.single1, height, scratch);
+            readPlanes(stegoImage, false, scratch.single2, height, scratch);
+            double[] sums = engine.compute(scratch.single1, scratch.single2, width, height, Math.pow(2, bits) - 1,
+                    map, scratch);
+            return sums[0] / ((double) width * height);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Gives the planes of an image as they are compared, every
+     * <code>factor</code> by <code>factor</code> block of pixels averaged into
+     * one value.
+     *
+     * @param image
+     *            Grey or colour image.
+     * @return The plane of a grey image, or the red, green and blue planes of
+     *         a colour image, each holding the downsampled pixels row by row.
+     * @throws SsimException
+     *             If the image is neither a grey nor a colour image or is
+     *             smaller than the downsampling factor.
+     */
+    public float[][] downsample(BufferedImage image) throws SsimException {
+        int components = image.getColorModel().getNumColorComponents();
+        if (components != 1 && components != 3) {
+            throw new SsimException("Only grey and colour images are supported!");
+        }
+        int width = scaledWidth(image);
+        int height = scaledHeight(image);
+        float[][] planes = new float[components][width * height];
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            readPlanes(image, false, planes, height, scratch);
+        } finally {
+            scratch.release();
+        }
+        return planes;
+    }
+
+    /**
+     * Computes the mean SSIM index of the red, green and blue channels of two
+     * colour images. The pixels of each image are unpacked once and the three
+     * channels are compared in a single sweep.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @return Index of every channel and of the whole image.
+     * @throws SsimException
+     *             If the images differ in size or are not colour images.
+     */
+    public RgbSsim calculateRgbSsim(BufferedImage coverImage, BufferedImage stegoImage) throws SsimException {
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            double[] sums = calculateColour(coverImage, stegoImage, false, null, scratch);
+            double dimension = (double) scaledWidth(coverImage) * scaledHeight(coverImage);
+            return new RgbSsim(sums[0] / dimension, sums[1] / dimension, sums[2] / dimension);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Computes the mean SSIM index of the luma (Y of YCbCr) of two colour
+     * images.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @return Mean SSIM index of the luma.
+     * @throws SsimException
+     *             If the images differ in size or are not colour images.
+     */
+    public double calculateLumaSsim(BufferedImage coverImage, BufferedImage stegoImage) throws SsimException {
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            double[] sums = calculateColour(coverImage, stegoImage, true, null, scratch);
+            return sums[0] / ((double) scaledWidth(coverImage) * scaledHeight(coverImage));
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Computes the multi-scale SSIM index (MS-SSIM) of two images: grey images
+     * by their samples, colour images by their luma. Each image is reduced
+     * into a pyramid of five levels whose comparisons run concurrently.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @return Multi-scale SSIM index.
+     * @throws SsimException
+     *             If the images differ in size, depth or number of colour
+     *             components, or are neither grey nor colour images.
+     * @see SsimEngine#computeMultiScaleIndex(float[], float[], int, int, double)
+     */
+    public double calculateMsSsim(BufferedImage coverImage, BufferedImage stegoImage) throws SsimException {
+        checkSameShape(coverImage, stegoImage);
+        int components = coverImage.getColorModel().getNumColorComponents();
+        if (components != stegoImage.getColorModel().getNumColorComponents()) {
+            throw new SsimException("The images must have the same number of colour components!");
+        }
+        if (components != 1 && components != 3) {
+            throw new SsimException("Only grey and colour images are supported!");
+        }
+        int width = scaledWidth(coverImage);
+        int height = scaledHeight(coverImage);
+
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            float[] plane1 = scratch.plane1(0, width * height);
+            float[] plane2 = scratch.plane2(0, width * height);
+            double dynamicRange = 255;
+            if (components == 1) {
+                int bits = coverImage.getRaster().getSampleModel().getSampleSize(0);
+                if (bits != stegoImage.getRaster().getSampleModel().getSampleSize(0)) {
+                    throw new SsimException("The images must have the same number of bits per pixel!");
+                }
+                dynamicRange = Math.pow(2, bits) - 1;
+            }
+            scratch.single1[0] = plane1;
+            scratch.single2[0] = plane2;
+            // the luma of colour images, the samples of grey ones
+            readPlanes(coverImage, true, scratch.single1, height, scratch);
+            readPlanes(stegoImage, true, scratch.single2, height, scratch);
+            return engine.computeMultiScale(plane1, plane2, width, height, dynamicRange, scratch);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Reads a cover image for comparisons with images that differ from it in
+     * their top rows only. Grey covers are compared by their single channel,
+     * colour covers by their red, green and blue channels.
+     *
+     * @param coverImage
+     *            The original image.
+     * @return Reference usable with this calculator only.
+     * @throws SsimException
+     *             If the image is neither a grey nor a colour image.
+     */
+    public SsimReference createReference(BufferedImage coverImage) throws SsimException {
+        int components = coverImage.getColorModel().getNumColorComponents();
+        if (components != 1 && components != 3) {
+            throw new SsimException("Only grey and colour images are supported!");
+        }
+        int width = scaledWidth(coverImage);
+        int height = scaledHeight(coverImage);
+        float[][] channels = new float[components][width * height];
+        double dynamicRange = 255;
+        if (components == 1) {
+            dynamicRange = Math.pow(2, coverImage.getRaster().getSampleModel().getSampleSize(0)) - 1;
+        }
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            readPlanes(coverImage, false, channels, height, scratch);
+        } finally {
+            scratch.release();
+        }
+        SsimReference reference = engine.createReference(channels, width, height, dynamicRange);
+        reference.imageWidth = coverImage.getWidth();
+        reference.imageHeight = coverImage.getHeight();
+        return reference;
+    }
+
+    /**
+     * Computes the mean SSIM index of a cover and an image which equals it
+     * from the given row on, e.g. a stego image whose message fills only the
+     * top rows of the cover. Only the windows reaching the changed rows are
+     * computed, every other pixel has an SSIM of 1. For colour images the mean
+     * of the red, green and blue indices is given.
+     *
+     * @param cover
+     *            Reference of the original image, created by this calculator.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @param changedRows
+     *            Number of rows, counting from the top, in which the image may
+     *            differ from the cover.
+     * @return Mean SSIM index.
+     * @throws SsimException
+     *             If the reference was created by another calculator or the
+     *             image does not match it.
+     */
+    public double calculateSsim(SsimReference cover, BufferedImage stegoImage, int changedRows)
+            throws SsimException {
+        checkReference(cover, stegoImage, changedRows);
+        int count = cover.getChannelCount();
+        int width = cover.width;
+        // a downsampled row is changed if one of the rows averaged into it is
+        int rows = (int) Math.min(cover.height, ((long) changedRows + factor - 1) / factor);
+
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            float[][] channels2 = count == 1 ? scratch.single2 : scratch.channels2;
+            for (int c = 0; c < count; c++) {
+                channels2[c] = scratch.plane2(c, rows * width);
+            }
+            readPlanes(stegoImage, false, channels2, rows, scratch);
+            double[] sums = engine.compute(cover, channels2, rows, scratch);
+            double suma = 0;
+            for (int c = 0; c < count; c++) {
+                suma = suma + sums[c];
+            }
+            return suma / count / ((double) width * cover.height);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Computes the mean SSIM index of a cover and each of many images, e.g.
+     * the stego images of several encodings of one cover. The window
+     * statistics of the cover are filtered once for all images, which are
+     * compared concurrently on the pool of the calculator.
+     *
+     * @param cover
+     *            Reference of the original image, created by this calculator.
+     * @param stegoImages
+     *            The images to compare with the original.
+     * @return Mean SSIM index of every image, in the order of the list.
+     * @throws SsimException
+     *             If the reference was created by another calculator or an
+     *             image does not match it.
+     */
+    public double[] calculateSsim(SsimReference cover, List<? extends BufferedImage> stegoImages)
+            throws SsimException {
+        return calculateSsim(cover, stegoImages, null);
+    }
+
+    /**
+     * Computes the mean SSIM index of a cover and each of many images which
+     * equal it from a given row on.
+     *
+     * @param cover
+     *            Reference of the original image, created by this calculator.
+     * @param stegoImages
+     *            The images to compare with the original.
+     * @param changedRows
+     *            Number of rows, counting from the top, in which every image
+     *            may differ from the cover, or <code>null</code> if they may
+     *            differ anywhere.
+     * @return Mean SSIM index of every image, in the order of the list.
+     * @throws SsimException
+     *             If the reference was created by another calculator or an
+     *             image does not match it.
+     * @see #calculateSsim(SsimReference, BufferedImage, int)
+     */
+    public double[] calculateSsim(SsimReference cover, List<? extends BufferedImage> stegoImages,
+            int[] changedRows) throws SsimException {
+        if (changedRows != null && changedRows.length != stegoImages.size()) {
+            throw new SsimException("There must be a number of changed rows for every image!");
+        }
+        int[] rows = new int[stegoImages.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = changedRows != null ? changedRows[i] : Integer.MAX_VALUE;
+            checkReference(cover, stegoImages.get(i), rows[i]);
+        }
+        double[] indices = new double[rows.length];
+        if (pool != null && rows.length > 1) {
+            pool.invoke(new Comparisons(cover, stegoImages, rows, indices, 0, rows.length));
+        } else {
+            for (int i = 0; i < rows.length; i++) {
+                indices[i] = calculateSsim(cover, stegoImages.get(i), rows[i]);
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Checks that an image can be compared with a reference.
+     *
+     * @throws SsimException
+     *             If the reference was created by another calculator or the
+     *             image does not match it.
+     */
+    private void checkReference(SsimReference cover, BufferedImage stegoImage, int changedRows)
+            throws SsimException {
+        if (cover.engine != engine) {
+            throw new SsimException("The reference was created by another calculator!");
+        }
+        if (cover.imageHeight != stegoImage.getHeight()) {
+            throw new SsimException("The images must be the same height!");
+        }
+        if (cover.imageWidth != stegoImage.getWidth()) {
+            throw new SsimException("The images must be the same width!");
+        }
+        int count = cover.getChannelCount();
+        if (stegoImage.getColorModel().getNumColorComponents() != count) {
+            throw new SsimException(count == 1 ? "Only grey images are supported!"
+                    : "Only colour images are supported!");
+        }
+        if (changedRows < 0) {
+            throw new SsimException("The number of changed rows must not be negative!");
+        }
+        if (count == 1
+                && Math.pow(2, stegoImage.getRaster().getSampleModel().getSampleSize(0)) - 1 != cover.dynamicRange) {
+            throw new SsimException("The images must have the same number of bits per pixel!");
+        }
+    }
+
+    /**
+     * Computes the mean SSIM index of two images of any size, holding only a
+     * tile of rows of both at once instead of whole planes.
+     *
+     * @see #calculateTiledSsim(BufferedImage, BufferedImage, OutputStream)
+     */
+    public double calculateTiledSsim(BufferedImage coverImage, BufferedImage stegoImage) throws SsimException {
+        try {
+            return calculateTiledSsim(coverImage, stegoImage, null);
+        } catch (IOException e) {
+            // nothing is written without a stream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the mean SSIM index of two images of any size, holding only a
+     * tile of rows of both at once instead of whole planes. Each tile is read
+     * with the half window above and below it, the rows shared with the
+     * previous tile being kept rather than read again, so the index equals the
+     * one of a whole comparison. Grey images are compared by their single
+     * band, colour images give the mean of their red, green and blue indices.
+     * <p>
+     * The memory used depends on the width of the images and the number of
+     * rows of a tile only. For images too large to be decoded onto the heap,
+     * read them through {@link ImageUtility#readMappedImage(String)}.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @param map
+     *            Stream receiving the SSIM of every pixel row by row as big
+     *            endian 32 bit floats, tile by tile as they are computed, or
+     *            <code>null</code>. The stream is not closed.
+     * @return Mean SSIM index.
+     * @throws SsimException
+     *             If the images differ in size, depth or number of colour
+     *             components, or are neither grey nor colour images.
+     * @throws IOException
+     *             If the map cannot be written.
+     * @see #setTileRows(int)
+     */
+    public double calculateTiledSsim(BufferedImage coverImage, BufferedImage stegoImage, OutputStream map)
+            throws SsimException, IOException {
+        checkSameShape(coverImage, stegoImage);
+        int count = coverImage.getColorModel().getNumColorComponents();
+        if (count != stegoImage.getColorModel().getNumColorComponents()) {
+            throw new SsimException("The images must have the same number of colour components!");
+        }
+        if (count != 1 && count != 3) {
+            throw new SsimException("Only grey and colour images are supported!");
+        }
+        Raster cover = coverImage.getRaster();
+        Raster stego = stegoImage.getRaster();
+        double dynamicRange = 255;
+        if (count == 1) {
+            int bits = cover.getSampleModel().getSampleSize(0);
+            if (bits != stego.getSampleModel().getSampleSize(0)) {
+                throw new SsimException("The images must have the same number of bits per pixel!");
+            }
+            dynamicRange = Math.pow(2, bits) - 1;
+        }
+        int width = scaledWidth(coverImage);
+        int height = scaledHeight(coverImage);
+        int tile = Math.min(tileRows, height);
+        int halo = engine.getRadius();
+        int bufferRows = tile + 2 * halo;
+
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            float[][] channels1 = count == 1 ? scratch.single1 : scratch.channels1;
+            float[][] channels2 = count == 1 ? scratch.single2 : scratch.channels2;
+            for (int c = 0; c < count; c++) {
+                channels1[c] = scratch.plane1(c, bufferRows * width);
+                channels2[c] = scratch.plane2(c, bufferRows * width);
+            }
+            float[] tileMap = null;
+            ByteBuffer bytes = null;
+            if (map != null) {
+                tileMap = new float[tile * width];
+                bytes = ByteBuffer.allocate(4 * tile * width);
+            }
+
+            RowReader reader1 = new RowReader(coverImage, scratch.row1(coverImage.getWidth()));
+            RowReader reader2 = new RowReader(stegoImage, scratch.row2(stegoImage.getWidth()));
+            double[] totals = new double[count];
+            int rows = 0;
+            for (int from = 0; from < height; from += tile) {
+                int to = Math.min(height, from + tile);
+                // the last rows of the previous tile are the first ones of this
+                int kept = 0;
+                if (from > 0) {
+                    kept = 2 * halo;
+                    for (int c = 0; c < count; c++) {
+                        System.arraycopy(channels1[c], (rows - kept) * width, channels1[c], 0, kept * width);
+                        System.arraycopy(channels2[c], (rows - kept) * width, channels2[c], 0, kept * width);
+                    }
+                }
+                rows = to - from + 2 * halo;
+                for (int i = kept; i < rows; i++) {
+                    int y = Math.min(height - 1, Math.max(0, from - halo + i));
+                    readRow(reader1, false, y, channels1, i * width);
+                    readRow(reader2, false, y, channels2, i * width);
+                }
+
+                double[] sums = engine.computeRows(channels1, channels2, width, rows, halo, halo + to - from,
+                        dynamicRange, tileMap, scratch);
+                for (int c = 0; c < count; c++) {
+                    totals[c] = totals[c] + sums[c];
+                }
+                if (map != null) {
+                    int length = (to - from) * width;
+                    bytes.clear();
+                    bytes.asFloatBuffer().put(tileMap, 0, length);
+                    map.write(bytes.array(), 0, 4 * length);
+                }
+            }
+
+            double suma = 0;
+            for (int c = 0; c < count; c++) {
+                suma = suma + totals[c] / ((double) width * height);
+            }
+            return suma / count;
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Compares two images in a single sweep over their pixels, giving their
+     * SSIM index together with the errors of their samples and the number of
+     * pixels and bits that differ. Like
+     * {@link #calculateTiledSsim(BufferedImage, BufferedImage, OutputStream)}
+     * the rows are read tile by tile, with the half window above and below
+     * each tile, and the SSIM of a tile is computed as soon as it is read.
+     * The rows of a tile are read in bands on the pool of the calculator, each
+     * row being compared sample by sample as it is unpacked for the SSIM
+     * index. Grey images are compared by their single band, colour images by
+     * their red, green and blue samples.
+     * <p>
+     * The memory used depends on the width of the images and the number of
+     * rows of a tile only. The errors cover all pixels; only the SSIM index is
+     * computed on the downsampled images.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @return Report of the differences.
+     * @throws SsimException
+     *             If the images differ in size, depth or number of colour
+     *             components, or are neither grey nor colour images.
+     * @see #setTileRows(int)
+     */
+    public QualityReport calculateQualityReport(BufferedImage coverImage, BufferedImage stegoImage)
+            throws SsimException {
+        checkSameShape(coverImage, stegoImage);
+        int count = coverImage.getColorModel().getNumColorComponents();
+        if (count != stegoImage.getColorModel().getNumColorComponents()) {
+            throw new SsimException("The images must have the same number of colour components!");
+        }
+        if (count != 1 && count != 3) {
+            throw new SsimException("Only grey and colour images are supported!");
+        }
+        double dynamicRange = 255;
+        if (count == 1) {
+            int bits = coverImage.getRaster().getSampleModel().getSampleSize(0);
+            if (bits != stegoImage.getRaster().getSampleModel().getSampleSize(0)) {
+                throw new SsimException("The images must have the same number of bits per pixel!");
+            }
+            dynamicRange = Math.pow(2, bits) - 1;
+        }
+        int width = scaledWidth(coverImage);
+        int height = scaledHeight(coverImage);
+        int tile = Math.min(tileRows, height);
+        int halo = engine.getRadius();
+        int bufferRows = tile + 2 * halo;
+
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            float[][] channels1 = count == 1 ? scratch.single1 : scratch.channels1;
+            float[][] channels2 = count == 1 ? scratch.single2 : scratch.channels2;
+            for (int c = 0; c < count; c++) {
+                channels1[c] = scratch.plane1(c, bufferRows * width);
+                channels2[c] = scratch.plane2(c, bufferRows * width);
+            }
+            long[] errors = new long[((bufferRows + BAND_ROWS - 1) / BAND_ROWS) * ERRORS];
+            long[] total = new long[ERRORS];
+            double[] totals = new double[count];
+            int rows = 0;
+            for (int from = 0; from < height; from += tile) {
+                int to = Math.min(height, from + tile);
+                // the last rows of the previous tile are the first ones of this
+                int kept = 0;
+                if (from > 0) {
+                    kept = 2 * halo;
+                    for (int c = 0; c < count; c++) {
+                        System.arraycopy(channels1[c], (rows - kept) * width, channels1[c], 0, kept * width);
+                        System.arraycopy(channels2[c], (rows - kept) * width, channels2[c], 0, kept * width);
+                    }
+                }
+                rows = to - from + 2 * halo;
+                int bands = (rows - kept + BAND_ROWS - 1) / BAND_ROWS;
+                if (pool != null && bands > 1) {
+                    pool.invoke(new Bands(coverImage, stegoImage, channels1, channels2, from - halo, kept, rows,
+                            height, errors, 0, bands));
+                } else {
+                    for (int b = 0; b < bands; b++) {
+                        readBand(coverImage, stegoImage, channels1, channels2, from - halo, kept, rows, height,
+                                errors, b);
+                    }
+                }
+                addErrors(errors, bands, total);
+
+                double[] sums = engine.computeRows(channels1, channels2, width, rows, halo, halo + to - from,
+                        dynamicRange, null, scratch);
+                for (int c = 0; c < count; c++) {
+                    totals[c] = totals[c] + sums[c];
+                }
+            }
+
+            // the rows left out by the downsampling are compared only
+            RowReader reader1 = new RowReader(coverImage, scratch.row1(coverImage.getWidth()));
+            RowReader reader2 = new RowReader(stegoImage, scratch.row2(stegoImage.getWidth()));
+            Arrays.fill(errors, 0, ERRORS, 0);
+            for (int y = height * factor; y < coverImage.getHeight(); y++) {
+                reader1.read(y);
+                reader2.read(y);
+                compare(reader1, reader2, errors, 0);
+            }
+            addErrors(errors, 1, total);
+
+            long pixels = (long) coverImage.getWidth() * coverImage.getHeight();
+            double suma = 0;
+            for (int c = 0; c < count; c++) {
+                suma = suma + totals[c] / ((double) width * height);
+            }
+            return new QualityReport(suma / count, (double) total[0] / (pixels * count), dynamicRange,
+                    (int) total[1], total[2], total[3], pixels);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Reads one band of the downsampled rows of a tile of two images into
+     * their buffers, comparing every row read. Rows above and below the
+     * images repeat their border rows, which are compared only once.
+     *
+     * @param first
+     *            Downsampled row held by the first row of the buffers, may be
+     *            negative.
+     * @param kept
+     *            Number of rows of the buffers kept from the previous tile.
+     * @param rows
+     *            Number of rows of the buffers.
+     * @param height
+     *            Number of downsampled rows of the images.
+     * @param errors
+     *            Error sums of all bands.
+     * @param band
+     *            Index of the band.
+     */
+    private void readBand(BufferedImage coverImage, BufferedImage stegoImage, float[][] channels1,
+            float[][] channels2, int first, int kept, int rows, int height, long[] errors, int band) {
+        // no comparison waits for other tasks while reading rows
+        SsimScratch scratch = SsimScratch.local();
+        RowReader reader1 = new RowReader(coverImage, scratch.row1(coverImage.getWidth()));
+        RowReader reader2 = new RowReader(stegoImage, scratch.row2(stegoImage.getWidth()));
+        int width = coverImage.getWidth() / factor;
+        int at = band * ERRORS;
+        Arrays.fill(errors, at, at + ERRORS, 0);
+        int fromRow = kept + band * BAND_ROWS;
+        int toRow = Math.min(rows, fromRow + BAND_ROWS);
+        for (int i = fromRow; i < toRow; i++) {
+            int y = first + i;
+            int source = Math.min(height - 1, Math.max(0, y));
+            int offset = i * width;
+            for (int c = 0; c < channels1.length; c++) {
+                Arrays.fill(channels1[c], offset, offset + width, 0f);
+                Arrays.fill(channels2[c], offset, offset + width, 0f);
+            }
+            for (int dy = 0; dy < factor; dy++) {
+                reader1.read(source * factor + dy);
+                reader2.read(source * factor + dy);
+                if (y == source) {
+                    compare(reader1, reader2, errors, at);
+                }
+                add(reader1, false, channels1, offset);
+                add(reader2, false, channels2, offset);
+            }
+            for (int c = 0; c < channels1.length; c++) {
+                scale(channels1[c], offset, width);
+                scale(channels2[c], offset, width);
+            }
+        }
+    }
+
+    /**
+     * Adds the error sums of bands to the ones of the whole images.
+     *
+     * @param errors
+     *            Error sums of the bands.
+     * @param bands
+     *            Number of bands.
+     * @param total
+     *            Error sums of the whole images.
+     */
+    private static void addErrors(long[] errors, int bands, long[] total) {
+        for (int at = 0; at < bands * ERRORS; at += ERRORS) {
+            total[0] = total[0] + errors[at];
+            total[1] = Math.max(total[1], errors[at + 1]);
+            total[2] = total[2] + errors[at + 2];
+            total[3] = total[3] + errors[at + 3];
+        }
+    }
+
+    /**
+     * Adds the differences of the rows read last by two readers to error
+     * sums.
+     *
+     * @param errors
+     *            Error sums of bands.
+     * @param at
+     *            Index of the sums of the band of the rows.
+     */
+    private static void compare(RowReader reader1, RowReader reader2, long[] errors, int at) {
+        int[] row1 = reader1.data;
+        int[] row2 = reader2.data;
+        int start1 = reader1.start;
+        int start2 = reader2.start;
+        // colour pixels are compared by their red, green and blue samples only
+        int mask = reader1.grey ? -1 : 0xffffff;
+        long squared = 0;
+        long maxError = errors[at + 1];
+        long changedPixels = 0;
+        long changedBits = 0;
+        for (int x = 0; x < reader1.width; x++) {
+            int a = row1[start1 + x] & mask;
+            int b = row2[start2 + x] & mask;
+            if (a == b) {
+                continue;
+            }
+            changedPixels++;
+            changedBits += Integer.bitCount(a ^ b);
+            if (reader1.grey) {
+                long d = (long) a - b;
+                squared += d * d;
+                maxError = Math.max(maxError, Math.abs(d));
+            } else {
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int d = ((a >> shift) & 0xff) - ((b >> shift) & 0xff);
+                    squared += d * d;
+                    maxError = Math.max(maxError, Math.abs(d));
+                }
+            }
+        }
+        errors[at] += squared;
+        errors[at + 1] = maxError;
+        errors[at + 2] += changedPixels;
+        errors[at + 3] += changedBits;
+    }
+
+    /**
+     * Compares the channels or the luma of two colour images.
+     *
+     * @param map
+     *            Array receiving the SSIM of every pixel, or <code>null</code>.
+     * @return Sums of the SSIM of every channel.
+     */
+    private double[] calculateColour(BufferedImage coverImage, BufferedImage stegoImage, boolean luma, float[] map,
+            SsimScratch scratch) throws SsimException {
+        checkSameShape(coverImage, stegoImage);
+        if (coverImage.getColorModel().getNumColorComponents() != 3
+                || stegoImage.getColorModel().getNumColorComponents() != 3) {
+            throw new SsimException("Only colour images are supported!");
+        }
+        int width = scaledWidth(coverImage);
+        int height = scaledHeight(coverImage);
+        float[][] channels1 = luma ? scratch.single1 : scratch.channels1;
+        float[][] channels2 = luma ? scratch.single2 : scratch.channels2;
+        for (int c = 0; c < channels1.length; c++) {
+            channels1[c] = scratch.plane1(c, width * height);
+            channels2[c] = scratch.plane2(c, width * height);
+        }
+        readPlanes(coverImage, luma, channels1, height, scratch);
+        readPlanes(stegoImage, luma, channels2, height, scratch);
+        return engine.compute(channels1, channels2, width, height, 255, map, scratch);
+    }
+
+    /**
+     * Checks that two images can be compared.
+     *
+     * @throws SsimException
+     *             If the images differ in size.
+     */
+    static void checkSameShape(BufferedImage coverImage, BufferedImage stegoImage) throws SsimException {
+        if (coverImage.getHeight() != stegoImage.getHeight()) {
+            throw new SsimException("The images must be the same height!");
+        }
+        if (coverImage.getWidth() != stegoImage.getWidth()) {
+            throw new SsimException("The images must be the same width!");
+        }
+    }
+
+    private int scaledWidth(BufferedImage image) throws SsimException {
+        int width = image.getWidth() / factor;
+        if (width < 1) {
+            throw new SsimException("The images are smaller than the downsampling factor!");
+        }
+        return width;
+    }
+
+    private int scaledHeight(BufferedImage image) throws SsimException {
+        int height = image.getHeight() / factor;
+        if (height < 1) {
+            throw new SsimException("The images are smaller than the downsampling factor!");
+        }
+        return height;
+    }
+
+    /**
+     * Reads the planes of an image, averaging every <code>factor</code> by
+     * <code>factor</code> block of pixels into one value.
+     *
+     * @param image
+     *            Grey or colour image.
+     * @param luma
+     *            <code>true</code> to give the luma only of a colour image.
+     * @param planes
+     *            Arrays receiving the plane of a grey image, the red, green
+     *            and blue planes or the luma plane of a colour image, row by
+     *            row.
+     * @param height
+     *            Number of rows of the planes to read, counting from the top.
+     * @param scratch
+     *            Buffers of the comparison.
+     */
+    private void readPlanes(BufferedImage image, boolean luma, float[][] planes, int height,
+            SsimScratch scratch) {
+        int width = image.getWidth() / factor;
+        RowReader reader = new RowReader(image, scratch.row1(image.getWidth()));
+        for (int y = 0; y < height; y++) {
+            readRow(reader, luma, y, planes, y * width);
+        }
+    }
+
+    /**
+     * Reads one downsampled row of an image.
+     *
+     * @param reader
+     *            Reader of the image.
+     * @param luma
+     *            <code>true</code> to give the luma only of a colour image.
+     * @param y
+     *            Index of the downsampled row.
+     * @param planes
+     *            Arrays receiving the values.
+     * @param offset
+     *            Index of the planes receiving the first value.
+     */
+    private void readRow(RowReader reader, boolean luma, int y, float[][] planes, int offset) {
+        int width = reader.width / factor;
+        for (float[] plane : planes) {
+            Arrays.fill(plane, offset, offset + width, 0f);
+        }
+        for (int dy = 0; dy < factor; dy++) {
+            reader.read(y * factor + dy);
+            add(reader, luma, planes, offset);
+        }
+        for (float[] plane : planes) {
+            scale(plane, offset, width);
+        }
+    }
+
+    /**
+     * Adds the row read last by a reader to the sums of the downsampled
+     * blocks it falls into.
+     */
+    private void add(RowReader reader, boolean luma, float[][] planes, int offset) {
+        int[] row = reader.data;
+        int start = reader.start;
+        int length = (reader.width / factor) * factor;
+        if (reader.grey) {
+            float[] plane = planes[0];
+            for (int x = 0; x < length; x++) {
+                plane[offset + x / factor] += row[start + x];
+            }
+            return;
+        }
+        for (int x = 0; x < length; x++) {
+            int pixel = row[start + x];
+            int red = (pixel >> 16) & 0xff;
+            int green = (pixel >> 8) & 0xff;
+            int blue = pixel & 0xff;
+            int i = offset + x / factor;
+            if (luma) {
+                planes[0][i] += (float) (16 + LUMA[0][red] + LUMA[1][green] + LUMA[2][blue]);
+            } else {
+                planes[0][i] += red;
+                planes[1][i] += green;
+                planes[2][i] += blue;
+            }
+        }
+    }
+
+    /**
+     * Turns the sums of downsampled blocks into their means.
+     */
+    private void scale(float[] plane, int offset, int length) {
+        if (factor > 1) {
+            float blockSize = factor * factor;
+            for (int i = offset; i < offset + length; i++) {
+                plane[i] = plane[i] / blockSize;
+            }
+        }
+    }
+
+    /**
+     * Compares a range of images with a reference, splitting it while it
+     * holds more than one.
+     */
+    private class Comparisons extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient SsimReference cover;
+        private final transient List<? extends BufferedImage> stegoImages;
+        private final int[] changedRows;
+        private final double[] indices;
+        private final int from;
+        private final int to;
+
+        Comparisons(SsimReference cover, List<? extends BufferedImage> stegoImages, int[] changedRows,
+                double[] indices, int from, int to) {
+            this.cover = cover;
+            this.stegoImages = stegoImages;
+            this.changedRows = changedRows;
+            this.indices = indices;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Comparisons(cover, stegoImages, changedRows, indices, from, mid),
+                        new Comparisons(cover, stegoImages, changedRows, indices, mid, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                try {
+                    indices[i] = calculateSsim(cover, stegoImages.get(i), changedRows[i]);
+                } catch (SsimException e) {
+                    // the images were checked before the comparisons started
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads and compares a range of bands of a tile of a quality report,
+     * splitting it while it holds more than one.
+     */
+    private class Bands extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient BufferedImage coverImage;
+        private final transient BufferedImage stegoImage;
+        private final float[][] channels1;
+        private final float[][] channels2;
+        private final int first;
+        private final int kept;
+        private final int rows;
+        private final int height;
+        private final long[] errors;
+        private final int from;
+        private final int to;
+
+        Bands(BufferedImage coverImage, BufferedImage stegoImage, float[][] channels1, float[][] channels2,
+                int first, int kept, int rows, int height, long[] errors, int from, int to) {
+            this.coverImage = coverImage;
+            this.stegoImage = stegoImage;
+            this.channels1 = channels1;
+            this.channels2 = channels2;
+            this.first = first;
+            this.kept = kept;
+            this.rows = rows;
+            this.height = height;
+            this.errors = errors;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Bands(coverImage, stegoImage, channels1, channels2, first, kept, rows, height, errors,
+                        from, mid),
+                        new Bands(coverImage, stegoImage, channels1, channels2, first, kept, rows, height, errors,
+                                mid, to));
+                return;
+            }
+            readBand(coverImage, stegoImage, channels1, channels2, first, kept, rows, height, errors, from);
+        }
+    }
+
+    /**
+     * Reads the rows of an image: the samples of the first band of grey
+     * images, the packed 8 bit red, green and blue samples of colour images.
+     * Colour images of packed RGB pixels, and of 8 bit sRGB samples laid out
+     * by a <code>ComponentSampleModel</code> (e.g. <code>TYPE_3BYTE_BGR</code>
+     * images decoded from PNG and JPEG files, or mapped rasters), are read
+     * straight from their data buffer, other colour images through
+     * <code>getRGB</code>.
+     */
+    private static final class RowReader {
+
+        private final BufferedImage image;
+        private final Raster raster;
+        final boolean grey;
+        final int width;
+        private final int[] buffer;
+        private int[] packed;
+        private int base;
+        private int scanline;
+
+        /** Buffer of 8 bit component samples, banks as arrays if it has them. */
+        private DataBuffer samples;
+        private byte[][] banks;
+        /** Banks and offsets of the red, green and blue samples of a pixel. */
+        private int[] bank;
+        private int[] offset;
+        private int pixelStride;
+
+        /** Values of the row read last, from <code>start</code> on. */
+        int[] data;
+        int start;
+
+        /**
+         * @param buffer
+         *            Array receiving rows that are not read in place, at least
+         *            as long as the width of the image.
+         */
+        RowReader(BufferedImage image, int[] buffer) {
+            this.image = image;
+            this.raster = image.getRaster();
+            this.grey = image.getColorModel().getNumColorComponents() == 1;
+            this.width = image.getWidth();
+            this.buffer = buffer;
+            if (grey) {
+                return;
+            }
+            SampleModel sm = raster.getSampleModel();
+            DataBuffer db = raster.getDataBuffer();
+            int tx = raster.getSampleModelTranslateX();
+            int ty = raster.getSampleModelTranslateY();
+            if ((image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)
+                    && db instanceof DataBufferInt && sm instanceof SinglePixelPackedSampleModel) {
+                packed = ((DataBufferInt) db).getData();
+                scanline = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+                base = db.getOffset() - ty * scanline - tx;
+            } else if (isComponentRgb(image.getColorModel(), sm)) {
+                ComponentSampleModel csm = (ComponentSampleModel) sm;
+                int[] bankIndices = csm.getBankIndices();
+                int[] bandOffsets = csm.getBandOffsets();
+                samples = db;
+                scanline = csm.getScanlineStride();
+                pixelStride = csm.getPixelStride();
+                base = -ty * scanline - tx * pixelStride;
+                bank = new int[3];
+                offset = new int[3];
+                // bands are R, G, B(, A)
+                for (int b = 0; b < 3; b++) {
+                    bank[b] = bankIndices[b];
+                    offset[b] = bandOffsets[b];
+                }
+                if (db instanceof DataBufferByte) {
+                    banks = new byte[3][];
+                    for (int b = 0; b < 3; b++) {
+                        banks[b] = ((DataBufferByte) db).getData(bank[b]);
+                        offset[b] = offset[b] + db.getOffsets()[bank[b]];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Tells whether the samples of a pixel are its 8 bit red, green and
+         * blue values, as <code>getRGB</code> gives them.
+         */
+        private static boolean isComponentRgb(ColorModel cm, SampleModel sm) {
+            if (!(cm instanceof ComponentColorModel) || !cm.getColorSpace().isCS_sRGB() || cm.isAlphaPremultiplied()
+                    || !(sm instanceof ComponentSampleModel) || sm.getDataType() != DataBuffer.TYPE_BYTE) {
+                return false;
+            }
+            for (int b = 0; b < 3; b++) {
+                if (sm.getSampleSize(b) != 8) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void read(int y) {
+            if (grey) {
+                raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, 1, 0, buffer);
+                data = buffer;
+                start = 0;
+            } else if (packed != null) {
+                data = packed;
+                start = base + y * scanline;
+            } else if (banks != null) {
+                byte[] red = banks[0];
+                byte[] green = banks[1];
+                byte[] blue = banks[2];
+                int at = base + y * scanline;
+                for (int x = 0; x < width; x++, at += pixelStride) {
+                    buffer[x] = (red[at + offset[0]] & 0xff) << 16 | (green[at + offset[1]] & 0xff) << 8
+                            | (blue[at + offset[2]] & 0xff);
+                }
+                data = buffer;
+                start = 0;
+            } else if (samples != null) {
+                int at = base + y * scanline;
+                for (int x = 0; x < width; x++, at += pixelStride) {
+                    buffer[x] = samples.getElem(bank[0], at + offset[0]) << 16
+                            | samples.getElem(bank[1], at + offset[1]) << 8 | samples.getElem(bank[2], at + offset[2]);
+                }
+                data = buffer;
+                start = 0;
+            } else {
+                image.getRGB(0, y, width, 1, buffer, 0, width);
+                data = buffer;
+                start = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,1009 @@
+package main.java.ssim;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SSIM index computed without ImageJ.
+ * <p>
+ * The window is separable, so every local statistic is computed by a
+ * horizontal and a vertical 1D pass instead of a 2D convolution (22 instead of
+ * 121 taps per pixel for the default 11x11 window). The five statistics
+ * (means, second moments and cross moment of both images) are filtered in the
+ * same sweep and the SSIM of a pixel is evaluated as soon as they are known,
+ * so no image-sized intermediate arrays are needed. Filtered rows are kept as
+ * floats in scratch buffers of the computing thread, which are reused by
+ * later comparisons (see {@link SsimScratch}). Edges are handled like
+ * ImageJ's <code>ImageProcessor.convolve</code>, by repeating the border
+ * pixels, and filtered statistics are rounded to <code>float</code> like
+ * ImageJ stores them, so the index matches {@link SsimHelper}'s former
+ * ImageJ-based computation. The separable passes add the products in another
+ * order than the 2D convolution, so both indices usually agree within 1e-6;
+ * for 16-bit images, and for images hardly larger than a wide window (e.g. a
+ * 5x7 image with a 31x31 window), where most windows repeat border pixels,
+ * they may differ by up to 2.5e-6.
+ * <p>
+ * Windows in which all pixels have the same weight are box filters. Their
+ * passes keep running sums of the rows and columns entering and leaving the
+ * window, the 1D form of a summed-area table, so every statistic costs a
+ * constant number of operations per pixel whatever the width of the window.
+ * <p>
+ * Images with several channels, e.g. red, green and blue, are compared channel
+ * by channel in the same sweep.
+ * <p>
+ * The multi-scale index (MS-SSIM) of Wang, Simoncelli and Bovik compares the
+ * levels of a dyadic pyramid of both images, each level built from the
+ * previous one by averaging 2x2 blocks. The levels are kept in scratch
+ * buffers and compared concurrently.
+ * <p>
+ * The image is processed in strips of rows which may run in parallel. Strip
+ * sums are added in a fixed order, so the index does not depend on the number
+ * of threads.
+ * <p>
+ * An image compared with a cover that it equals below some row, like a stego
+ * image whose message fills only the top of the cover, can be compared with an
+ * {@link SsimReference} of the cover. Only the strips whose windows reach the
+ * changed rows are swept, using the cover statistics cached by the reference;
+ * every pixel below them has an SSIM of exactly 1, as its window holds the same
+ * values in both images. The reference holds the filtered mean and second
+ * moment of the cover, so a comparison filters only the three statistics
+ * involving the other image.
+ */
+public class SsimEngine {
+
+    /** Number of rows of the strips of small windows. */
+    private static final int STRIP_ROWS = 32;
+
+    /** Number of filtered statistics. */
+    private static final int STATS = 5;
+
+    /**
+     * Weights of the levels of the multi-scale index, finest first, as
+     * proposed by Wang, Simoncelli and Bovik.
+     */
+    private static final double[] LEVEL_WEIGHTS = { 0.0448, 0.2856, 0.3001, 0.2363, 0.1333 };
+
+    /** 1D weights of the window, summing to 1. */
+    private final double[] window;
+
+    /** Half width of the window. */
+    private final int radius;
+
+    /** Tells whether all weights of the window are equal. */
+    private final boolean box;
+
+    /**
+     * Number of rows of one strip, a multiple of {@link #STRIP_ROWS} at least
+     * twice the halo so that large windows do not filter more halo rows than
+     * strip rows.
+     */
+    private final int stripRows;
+
+    private final double k1;
+
+    private final double k2;
+
+    /** Pool on which strips are processed, <code>null</code> for serial. */
+    private ForkJoinPool pool;
+
+    /**
+     * Creates an engine for the given separable window.
+     *
+     * @param window
+     *            1D weights of the window, of odd length; the 2D window is
+     *            their outer product. They are normalised to sum to 1.
+     * @param k1
+     *            Constant K1 of the SSIM index, usually 0.01.
+     * @param k2
+     *            Constant K2 of the SSIM index, usually 0.03.
+     * @throws SsimException
+     *             If the window is empty, of even length or sums to 0.
+     */
+    public SsimEngine(double[] window, double k1, double k2) throws SsimException {
+        if (window.length == 0 || window.length % 2 == 0) {
+            throw new SsimException("Filter width and heigth must be odd");
+        }
+        double total = 0;
+        for (double w : window) {
+            total += w;
+        }
+        if (total == 0) {
+            throw new SsimException("Filter weights must not sum to 0");
+        }
+        this.window = new double[window.length];
+        for (int i = 0; i < window.length; i++) {
+            this.window[i] = window[i] / total;
+        }
+        this.radius = window.length / 2;
+        boolean equal = true;
+        for (double w : window) {
+            equal = equal && w == window[0];
+        }
+        this.box = equal;
+        this.stripRows = STRIP_ROWS * Math.max(1, (4 * radius + STRIP_ROWS - 1) / STRIP_ROWS);
+        this.k1 = k1;
+        this.k2 = k2;
+    }
+
+    /**
+     * Gives the 1D weights of a gaussian window. Their outer product is the 2D
+     * gaussian window of {@link SSIM_index}.
+     *
+     * @param width
+     *            Width of the window, odd.
+     * @param sigma
+     *            Standard deviation of the gaussian.
+     * @return Weights summing to 1.
+     */
+    public static double[] gaussianWindow(int width, double sigma) {
+        double[] window = new double[width];
+        int center = width / 2;
+        double sigmaSq = sigma * sigma;
+        double total = 0;
+        for (int x = 0; x < width; x++) {
+            int distance = (x - center) * (x - center);
+            window[x] = Math.exp((-0.5 * distance) / sigmaSq);
+            total = total + window[x];
+        }
+        for (int x = 0; x < width; x++) {
+            window[x] = window[x] / total;
+        }
+        return window;
+    }
+
+    /**
+     * Gives the 1D weights of a window in which all pixels have the same
+     * weight.
+     *
+     * @param width
+     *            Width of the window, odd.
+     * @return Weights summing to 1.
+     */
+    public static double[] uniformWindow(int width) {
+        double[] window = new double[width];
+        for (int x = 0; x < width; x++) {
+            window[x] = 1.0 / width;
+        }
+        return window;
+    }
+
+    /**
+     * Sets the pool on which strips of rows are processed. Without a pool (the
+     * default) the index is computed in the calling thread. Both ways give the
+     * same index.
+     *
+     * @param pool
+     *            Pool for parallel computation or <code>null</code>.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Computes the mean SSIM index of two grey images.
+     *
+     * @param image1
+     *            Pixel values of the first image, row by row.
+     * @param image2
+     *            Pixel values of the second image, row by row.
+     * @param width
+     *            Width of the images.
+     * @param height
+     *            Height of the images.
+     * @param dynamicRange
+     *            Dynamic range of the pixel values, e.g. 255 for 8 bit images.
+     * @param map
+     *            Array receiving the SSIM of every pixel, or <code>null</code>.
+     * @return Mean SSIM index.
+     * @throws SsimException
+     *             If the arrays do not match the dimensions.
+     */
+    public double computeIndex(float[] image1, float[] image2, int width, int height, double dynamicRange,
+            float[] map) throws SsimException {
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            scratch.single1[0] = image1;
+            scratch.single2[0] = image2;
+            double[] sums = compute(scratch.single1, scratch.single2, width, height, dynamicRange, map, scratch);
+            return sums[0] / ((double) width * height);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Computes the mean SSIM index of every channel of two images. All
+     * channels are filtered in the same sweep.
+     *
+     * @param channels1
+     *            Planes of the first image, each row by row.
+     * @param channels2
+     *            Planes of the second image, in the same order.
+     * @param width
+     *            Width of the images.
+     * @param height
+     *            Height of the images.
+     * @param dynamicRange
+     *            Dynamic range of the values of every channel.
+     * @return Mean SSIM index of every channel.
+     * @throws SsimException
+     *             If the planes do not match each other or the dimensions.
+     */
+    public double[] computeIndices(float[][] channels1, float[][] channels2, int width, int height,
+            double dynamicRange) throws SsimException {
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            double[] sums = compute(channels1, channels2, width, height, dynamicRange, null, scratch);
+            double[] indices = new double[channels1.length];
+            for (int c = 0; c < indices.length; c++) {
+                indices[c] = sums[c] / ((double) width * height);
+            }
+            return indices;
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Computes the multi-scale SSIM index (MS-SSIM) of two grey images. The
+     * contrast and structure terms of the finer levels and the SSIM of the
+     * coarsest level are combined with the weights of Wang, Simoncelli and
+     * Bovik. Images too small for five levels with a window on the coarsest
+     * one are compared on fewer levels, with the weights of these levels
+     * rescaled to sum to 1; negative terms count as 0.
+     *
+     * @param image1
+     *            Pixel values of the first image, row by row.
+     * @param image2
+     *            Pixel values of the second image, row by row.
+     * @param width
+     *            Width of the images.
+     * @param height
+     *            Height of the images.
+     * @param dynamicRange
+     *            Dynamic range of the pixel values, e.g. 255 for 8 bit images.
+     * @return Multi-scale SSIM index.
+     * @throws SsimException
+     *             If the arrays do not match the dimensions.
+     */
+    public double computeMultiScaleIndex(float[] image1, float[] image2, int width, int height,
+            double dynamicRange) throws SsimException {
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            return computeMultiScale(image1, image2, width, height, dynamicRange, scratch);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Computes the multi-scale SSIM index of two grey images.
+     *
+     * @param scratch
+     *            Buffers of the comparison, held by the caller.
+     */
+    double computeMultiScale(float[] image1, float[] image2, int width, int height, double dynamicRange,
+            SsimScratch scratch) throws SsimException {
+        if (width < 1 || height < 1 || image1.length < width * height || image2.length < width * height) {
+            throw new SsimException("The images must be " + width + "x" + height + " pixels!");
+        }
+        int levels = 1;
+        while (levels < LEVEL_WEIGHTS.length && Math.min(width, height) >> levels >= window.length) {
+            levels++;
+        }
+
+        // the pyramids, the finest level being the images themselves
+        float[][] pyramid1 = new float[levels][];
+        float[][] pyramid2 = new float[levels][];
+        pyramid1[0] = image1;
+        pyramid2[0] = image2;
+        for (int level = 1; level < levels; level++) {
+            int length = (width >> level) * (height >> level);
+            pyramid1[level] = reduce(pyramid1[level - 1], width >> (level - 1), height >> (level - 1),
+                    scratch.level1(level, length));
+            pyramid2[level] = reduce(pyramid2[level - 1], width >> (level - 1), height >> (level - 1),
+                    scratch.level2(level, length));
+        }
+
+        double[] terms = new double[2 * levels];
+        if (pool != null && levels > 1) {
+            pool.invoke(new Levels(pyramid1, pyramid2, width, height, dynamicRange, terms, 0, levels));
+        } else {
+            for (int level = 0; level < levels; level++) {
+                computeLevel(pyramid1, pyramid2, width, height, dynamicRange, terms, level, scratch);
+            }
+        }
+
+        double total = 0;
+        for (int level = 0; level < levels; level++) {
+            total = total + LEVEL_WEIGHTS[level];
+        }
+        double index = 1;
+        for (int level = 0; level < levels; level++) {
+            // contrast and structure of the finer levels, SSIM of the coarsest
+            double term = level < levels - 1 ? terms[2 * level + 1] : terms[2 * level];
+            index = index * Math.pow(Math.max(0, term), LEVEL_WEIGHTS[level] / total);
+        }
+        return index;
+    }
+
+    /**
+     * Compares one level of the pyramids and stores its mean SSIM at
+     * <code>terms[2 * level]</code> and its mean contrast and structure term
+     * after it.
+     */
+    private void computeLevel(float[][] pyramid1, float[][] pyramid2, int width, int height, double dynamicRange,
+            double[] terms, int level, SsimScratch scratch) {
+        int levelWidth = width >> level;
+        int levelHeight = height >> level;
+        scratch.single1[0] = pyramid1[level];
+        scratch.single2[0] = pyramid2[level];
+        double[] sums = sweep(scratch.single1, scratch.single2, null, levelHeight, levelWidth, levelHeight, 0,
+                levelHeight, dynamicRange, null, true, scratch);
+        double dimension = (double) levelWidth * levelHeight;
+        terms[2 * level] = sums[0] / dimension;
+        terms[2 * level + 1] = sums[1] / dimension;
+    }
+
+    /**
+     * Averages every 2x2 block of an image into one value, dropping the last
+     * row and column of odd sizes.
+     *
+     * @param target
+     *            Array receiving the values row by row.
+     * @return The target.
+     */
+    private static float[] reduce(float[] image, int width, int height, float[] target) {
+        int half = width / 2;
+        for (int y = 0; y < height / 2; y++) {
+            int top = 2 * y * width;
+            int bottom = top + width;
+            int at = y * half;
+            for (int x = 0; x < half; x++) {
+                target[at + x] = (image[top + 2 * x] + image[top + 2 * x + 1] + image[bottom + 2 * x]
+                        + image[bottom + 2 * x + 1]) * 0.25f;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Creates a reference of a cover image, for comparisons with images that
+     * differ from it in their top rows only. The window statistics of the
+     * cover are computed as comparisons need them and kept for later ones.
+     *
+     * @param channels
+     *            Planes of the cover, each row by row. They are used, not
+     *            copied, so they must not be changed afterwards.
+     * @param width
+     *            Width of the cover.
+     * @param height
+     *            Height of the cover.
+     * @param dynamicRange
+     *            Dynamic range of the values of every channel.
+     * @return Reference usable with this engine only.
+     * @throws SsimException
+     *             If the planes do not match the dimensions.
+     */
+    public SsimReference createReference(float[][] channels, int width, int height, double dynamicRange)
+            throws SsimException {
+        if (channels.length == 0) {
+            throw new SsimException("The images must have the same number of channels!");
+        }
+        for (float[] channel : channels) {
+            if (width < 1 || height < 1 || channel.length < width * height) {
+                throw new SsimException("The images must be " + width + "x" + height + " pixels!");
+            }
+        }
+        return new SsimReference(this, channels, width, height, dynamicRange);
+    }
+
+    /**
+     * Computes the mean SSIM index of a grey cover and an image equal to it
+     * from the given row on.
+     *
+     * @param cover
+     *            Reference of the cover, created by this engine.
+     * @param image
+     *            Pixel values of the image, row by row. Only the changed rows
+     *            are read.
+     * @param changedRows
+     *            Number of rows, counting from the top, in which the image may
+     *            differ from the cover.
+     * @return Mean SSIM index.
+     * @throws SsimException
+     *             If the reference was not created by this engine or the
+     *             image does not match it.
+     */
+    public double computeIndex(SsimReference cover, float[] image, int changedRows) throws SsimException {
+        SsimScratch scratch = SsimScratch.acquire();
+        try {
+            scratch.single2[0] = image;
+            double[] sums = compute(cover, scratch.single2, changedRows, scratch);
+            return sums[0] / ((double) cover.width * cover.height);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Computes the sum of the SSIM of all pixels of every channel of a cover
+     * and an image equal to it from the given row on.
+     *
+     * @param scratch
+     *            Buffers of the comparison, held by the caller.
+     * @return Sums of the channels, at the start of a scratch array.
+     */
+    double[] compute(SsimReference cover, float[][] channels2, int changedRows, SsimScratch scratch)
+            throws SsimException {
+        if (cover.engine != this) {
+            throw new SsimException("The reference was created for another window!");
+        }
+        if (changedRows < 0) {
+            throw new SsimException("The number of changed rows must not be negative!");
+        }
+        int width = cover.width;
+        int height = cover.height;
+        int rows = Math.min(height, changedRows);
+        if (channels2.length != cover.channels.length) {
+            throw new SsimException("The images must have the same number of channels!");
+        }
+        for (float[] channel : channels2) {
+            if (channel.length < rows * width) {
+                throw new SsimException("The images must be " + width + "x" + height + " pixels!");
+            }
+        }
+        // a window reaching no changed row compares equal pixels
+        int swept = rows == 0 ? 0 : Math.min(height, rows + radius);
+        double[] sums = sweep(cover.channels, channels2, cover, rows, width, height, 0, swept, cover.dynamicRange,
+                null, false, scratch);
+        // every pixel below the swept rows has an SSIM of 1
+        for (int c = 0; c < channels2.length; c++) {
+            sums[c] = sums[c] + (double) (height - swept) * width;
+        }
+        return sums;
+    }
+
+    /**
+     * Gives the number of rows above and below a pixel that its window
+     * reaches.
+     */
+    int getRadius() {
+        return radius;
+    }
+
+    /**
+     * Gives the number of rows of a strip, which is also the number of rows of
+     * a block of a reference.
+     */
+    int getStripRows() {
+        return stripRows;
+    }
+
+    /**
+     * Computes the sums of the SSIM of a range of rows of two images of which
+     * only a part is held, e.g. a tile of images too large to be held at once.
+     * The buffers hold the range and the half window above and below it, each
+     * row clamped to the whole images, so the rows are computed as in the
+     * whole images.
+     *
+     * @param height
+     *            Number of rows held by the buffers.
+     * @param fromRow
+     *            First row of the buffers to compute.
+     * @param toRow
+     *            Row of the buffers after the last one to compute.
+     * @param map
+     *            Array receiving the SSIM of the computed rows, or
+     *            <code>null</code>.
+     * @param scratch
+     *            Buffers of the comparison, held by the caller.
+     * @return Sums of the channels, at the start of a scratch array.
+     */
+    double[] computeRows(float[][] channels1, float[][] channels2, int width, int height, int fromRow, int toRow,
+            double dynamicRange, float[] map, SsimScratch scratch) {
+        return sweep(channels1, channels2, null, height, width, height, fromRow, toRow, dynamicRange, map, false,
+                scratch);
+    }
+
+    /**
+     * Computes the sum of the SSIM of all pixels of every channel.
+     *
+     * @param map
+     *            Array receiving the SSIM of every pixel, averaged over the
+     *            channels, or <code>null</code>.
+     * @param scratch
+     *            Buffers of the comparison, held by the caller.
+     * @return Sums of the channels, at the start of a scratch array.
+     */
+    double[] compute(float[][] channels1, float[][] channels2, int width, int height, double dynamicRange,
+            float[] map, SsimScratch scratch) throws SsimException {
+        int dimension = width * height;
+        int count = channels1.length;
+        if (count == 0 || channels2.length != count) {
+            throw new SsimException("The images must have the same number of channels!");
+        }
+        for (int c = 0; c < count; c++) {
+            if (width < 1 || height < 1 || channels1[c].length < dimension || channels2[c].length < dimension) {
+                throw new SsimException("The images must be " + width + "x" + height + " pixels!");
+            }
+        }
+        if (map != null && map.length < dimension) {
+            throw new SsimException("The SSIM map must be " + width + "x" + height + " pixels!");
+        }
+        return sweep(channels1, channels2, null, height, width, height, 0, height, dynamicRange, map, false, scratch);
+    }
+
+    /**
+     * Computes the SSIM of the rows from <code>fromRow</code> to
+     * <code>toRow</code> in strips.
+     *
+     * @param reference
+     *            Reference of the first image, or <code>null</code>.
+     * @param changedRows
+     *            Number of rows of the second image that are read, the
+     *            others are taken from the first image.
+     * @param map
+     *            Array receiving the SSIM of the rows, from row
+     *            <code>fromRow</code> on, or <code>null</code>.
+     * @param structure
+     *            <code>true</code> to give the sums of the contrast and
+     *            structure term of every channel after the SSIM sums.
+     * @return Sums of the rows per channel, at the start of a scratch array.
+     */
+    private double[] sweep(float[][] channels1, float[][] channels2, SsimReference reference, int changedRows,
+            int width, int height, int fromRow, int toRow, double dynamicRange, float[] map, boolean structure,
+            SsimScratch scratch) {
+        int lanes = structure ? 2 * channels1.length : channels1.length;
+        int strips = (toRow - fromRow + stripRows - 1) / stripRows;
+        double[] sums = scratch.sums((strips + 1) * lanes);
+        Sweep sweep = new Sweep(channels1, channels2, reference, changedRows, width, height, fromRow, toRow,
+                dynamicRange, map, structure, sums);
+        if (pool != null && strips > 1) {
+            pool.invoke(new Strips(sweep, 0, strips));
+        } else {
+            for (int s = 0; s < strips; s++) {
+                sweep.computeStrip(s);
+            }
+        }
+        // strip sums are added in order, the total goes in front of them
+        for (int l = 0; l < lanes; l++) {
+            double suma = 0;
+            for (int s = 0; s < strips; s++) {
+                suma = suma + sums[(s + 1) * lanes + l];
+            }
+            sums[l] = suma;
+        }
+        return sums;
+    }
+
+    /**
+     * Parameters of one sweep over the rows of two images.
+     */
+    private class Sweep {
+
+        private final float[][] channels1;
+        private final float[][] channels2;
+        private final SsimReference reference;
+        private final int changedRows;
+        private final int width;
+        private final int height;
+        /** First row swept. */
+        private final int first;
+        /** Row after the last one swept. */
+        private final int last;
+        private final double c1;
+        private final double c2;
+        private final float[] map;
+        private final boolean structure;
+        private final double[] sums;
+
+        Sweep(float[][] channels1, float[][] channels2, SsimReference reference, int changedRows, int width,
+                int height, int first, int last, double dynamicRange, float[] map, boolean structure,
+                double[] sums) {
+            this.channels1 = channels1;
+            this.channels2 = channels2;
+            this.reference = reference;
+            this.changedRows = changedRows;
+            this.width = width;
+            this.height = height;
+            this.first = first;
+            this.last = last;
+            double range1 = dynamicRange * k1;
+            this.c1 = range1 * range1;
+            double range2 = dynamicRange * k2;
+            this.c2 = range2 * range2;
+            this.map = map;
+            this.structure = structure;
+            this.sums = sums;
+        }
+
+        /**
+         * Computes the SSIM of the rows of one strip and stores their sum per
+         * channel at <code>sums[(strip + 1) * lanes + channel]</code>,
+         * followed by the contrast and structure sums if asked for. Rows of
+         * the second image from <code>changedRows</code> on are taken from the
+         * first one; with a reference, the statistics of the first image are
+         * taken from it.
+         */
+        void computeStrip(int strip) {
+            int taps = window.length;
+            int fromRow = first + strip * stripRows;
+            int toRow = Math.min(last, fromRow + stripRows);
+            int rows = toRow - fromRow + 2 * radius;
+            int count = channels1.length;
+            int span = width + 2 * radius;
+            int plane = rows * width;
+
+            // block of the reference holding the strip, strips of comparisons with
+            // a reference start at the first row; it is taken before the scratch
+            // buffers as filling it uses the latter
+            float[] block = null;
+            int blockPlane = 0;
+            if (reference != null) {
+                block = reference.block(fromRow / stripRows);
+                blockPlane = reference.blockRows(fromRow / stripRows) * width;
+            }
+
+            // horizontally filtered statistics of the strip and its halo
+            SsimScratch scratch = SsimScratch.local();
+            float[] filtered = scratch.filtered(STATS * count * plane);
+            float[] source = scratch.source(STATS * span);
+            for (int c = 0; c < count; c++) {
+                for (int r = 0; r < rows; r++) {
+                    int y = clamp(fromRow - radius + r, height);
+                    float[] image1 = channels1[c];
+                    float[] image2 = y < changedRows ? channels2[c] : image1;
+                    for (int x = -radius; x < width + radius; x++) {
+                        int i = y * width + clamp(x, width);
+                        float a = image1[i];
+                        float b = image2[i];
+                        int s = x + radius;
+                        source[s] = a;
+                        source[span + s] = b;
+                        source[2 * span + s] = a * a;
+                        source[3 * span + s] = b * b;
+                        source[4 * span + s] = a * b;
+                    }
+                    for (int k = 0; k < STATS; k++) {
+                        // the cover statistics are cached, only the others are filtered
+                        if (block != null && isCached(k)) {
+                            continue;
+                        }
+                        filterRow(source, k * span, filtered, (STATS * c + k) * plane + r * width, width);
+                    }
+                }
+            }
+
+            int lanes = structure ? 2 * count : count;
+            int sumsAt = (strip + 1) * lanes;
+            for (int l = 0; l < lanes; l++) {
+                sums[sumsAt + l] = 0;
+            }
+            double[] columns = box ? scratch.columns(STATS * count * width) : null;
+            double weight = window[0];
+            for (int y = fromRow; y < toRow; y++) {
+                int top = (y - fromRow) * width;
+                if (box) {
+                    slideColumns(filtered, columns, y - fromRow, STATS * count, plane, width, block != null);
+                }
+                for (int x = 0; x < width; x++) {
+                    double pixel = 0;
+                    for (int c = 0; c < count; c++) {
+                        double s1 = 0, s2 = 0, s11 = 0, s22 = 0, s12 = 0;
+                        if (block != null) {
+                            int cached = (2 * c) * blockPlane + top + x;
+                            s1 = block[cached];
+                            s11 = block[cached + blockPlane];
+                        }
+                        if (box) {
+                            int mu1Col = STATS * c * width + x;
+                            if (block == null) {
+                                s1 = columns[mu1Col] * weight;
+                                s11 = columns[mu1Col + 2 * width] * weight;
+                            }
+                            s2 = columns[mu1Col + width] * weight;
+                            s22 = columns[mu1Col + 3 * width] * weight;
+                            s12 = columns[mu1Col + 4 * width] * weight;
+                        } else {
+                            int mu1Col = STATS * c * plane + top + x;
+                            int mu2Col = mu1Col + plane;
+                            int sq1Col = mu2Col + plane;
+                            int sq2Col = sq1Col + plane;
+                            int crossCol = sq2Col + plane;
+                            if (block == null) {
+                                for (int t = 0, i = 0; t < taps; t++, i += width) {
+                                    double w = window[t];
+                                    s1 += filtered[mu1Col + i] * w;
+                                    s11 += filtered[sq1Col + i] * w;
+                                }
+                            }
+                            for (int t = 0, i = 0; t < taps; t++, i += width) {
+                                double w = window[t];
+                                s2 += filtered[mu2Col + i] * w;
+                                s22 += filtered[sq2Col + i] * w;
+                                s12 += filtered[crossCol + i] * w;
+                            }
+                        }
+                        double ssim = ssim(s1, s2, s11, s22, s12, c1, c2);
+                        sums[sumsAt + c] += ssim;
+                        if (structure) {
+                            sums[sumsAt + count + c] += contrastStructure(s1, s2, s11, s22, s12, c2);
+                        }
+                        pixel = pixel + ssim;
+                    }
+                    if (map != null) {
+                        map[(y - first) * width + x] = (float) (pixel / count);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Filters one row of a statistic horizontally.
+     *
+     * @param source
+     *            Values of the row, extended by the half width of the window
+     *            on both sides.
+     * @param target
+     *            Array receiving the <code>width</code> filtered values.
+     */
+    private void filterRow(float[] source, int src, float[] target, int dst, int width) {
+        int taps = window.length;
+        if (box) {
+            // running sum of the values under the window
+            double weight = window[0];
+            double sum = 0;
+            for (int t = 0; t < taps - 1; t++) {
+                sum += source[src + t];
+            }
+            for (int x = 0; x < width; x++) {
+                sum += source[src + x + taps - 1];
+                target[dst + x] = (float) (sum * weight);
+                sum -= source[src + x];
+            }
+            return;
+        }
+        for (int x = 0; x < width; x++) {
+            double sum = 0;
+            for (int t = 0; t < taps; t++) {
+                sum += source[src + x + t] * window[t];
+            }
+            target[dst + x] = (float) sum;
+        }
+    }
+
+    /**
+     * Moves the running column sums of a box window to the given row of a
+     * strip: the first row sums the window, every later one adds the row
+     * entering it and subtracts the row leaving it.
+     *
+     * @param filtered
+     *            Horizontally filtered statistics of the strip and its halo.
+     * @param columns
+     *            Sums of every statistic and column, one row of
+     *            <code>width</code> sums per statistic.
+     * @param row
+     *            Row of the strip, counting from its first row.
+     * @param lanes
+     *            Number of statistics.
+     * @param plane
+     *            Length of the rows of one statistic in <code>filtered</code>.
+     * @param cached
+     *            <code>true</code> to skip the statistics of the first image,
+     *            which are cached by a reference.
+     */
+    private void slideColumns(float[] filtered, double[] columns, int row, int lanes, int plane, int width,
+            boolean cached) {
+        int taps = window.length;
+        for (int l = 0; l < lanes; l++) {
+            if (cached && isCached(l % STATS)) {
+                continue;
+            }
+            int sum = l * width;
+            int base = l * plane;
+            if (row == 0) {
+                for (int x = 0; x < width; x++) {
+                    columns[sum + x] = 0;
+                }
+                for (int t = 0; t < taps; t++) {
+                    int at = base + t * width;
+                    for (int x = 0; x < width; x++) {
+                        columns[sum + x] += filtered[at + x];
+                    }
+                }
+            } else {
+                int entering = base + (row + taps - 1) * width;
+                int leaving = base + (row - 1) * width;
+                for (int x = 0; x < width; x++) {
+                    columns[sum + x] += filtered[entering + x] - (double) filtered[leaving + x];
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells whether a statistic, by its index among the five filtered ones,
+     * depends on the first image only and is therefore cached by a reference:
+     * the mean and the second moment.
+     */
+    private static boolean isCached(int statistic) {
+        return statistic == 0 || statistic == 2;
+    }
+
+    /**
+     * Filters the mean and the second moment of every channel of the cover
+     * over the rows of one block of a reference, horizontally and vertically,
+     * as <code>computeStrip</code> does for a strip.
+     *
+     * @return Rows of the means and second moments of every channel, one plane
+     *         after the other.
+     */
+    float[] filterBlock(SsimReference reference, int index) {
+        int width = reference.width;
+        int height = reference.height;
+        int count = reference.channels.length;
+        int fromRow = index * stripRows;
+        int blockRows = reference.blockRows(index);
+        int rows = blockRows + 2 * radius;
+        int span = width + 2 * radius;
+        int plane = rows * width;
+
+        // horizontally filtered rows of the block and its halo
+        SsimScratch scratch = SsimScratch.local();
+        float[] filtered = scratch.filtered(2 * count * plane);
+        float[] source = scratch.source(2 * span);
+        for (int c = 0; c < count; c++) {
+            float[] image = reference.channels[c];
+            for (int r = 0; r < rows; r++) {
+                int y = clamp(fromRow - radius + r, height);
+                for (int x = -radius; x < width + radius; x++) {
+                    float a = image[y * width + clamp(x, width)];
+                    source[x + radius] = a;
+                    source[span + x + radius] = a * a;
+                }
+                for (int k = 0; k < 2; k++) {
+                    filterRow(source, k * span, filtered, (2 * c + k) * plane + r * width, width);
+                }
+            }
+        }
+
+        int blockPlane = blockRows * width;
+        float[] block = new float[2 * count * blockPlane];
+        double[] columns = box ? scratch.columns(2 * count * width) : null;
+        double weight = window[0];
+        int taps = window.length;
+        for (int r = 0; r < blockRows; r++) {
+            if (box) {
+                slideColumns(filtered, columns, r, 2 * count, plane, width, false);
+            }
+            for (int l = 0; l < 2 * count; l++) {
+                for (int x = 0; x < width; x++) {
+                    double sum = 0;
+                    if (box) {
+                        sum = columns[l * width + x] * weight;
+                    } else {
+                        int col = l * plane + r * width + x;
+                        for (int t = 0, i = 0; t < taps; t++, i += width) {
+                            sum += filtered[col + i] * window[t];
+                        }
+                    }
+                    // only the float value of a statistic is used
+                    block[l * blockPlane + r * width + x] = (float) sum;
+                }
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Computes the SSIM of one pixel from its filtered statistics.
+     */
+    private static double ssim(double s1, double s2, double s11, double s22, double s12, double c1, double c2) {
+        // filtered statistics are kept as floats, like by ImageJ
+        float mu1 = (float) s1;
+        float mu2 = (float) s2;
+        double mu1Sq = mu1 * mu1;
+        double mu2Sq = mu2 * mu2;
+        double mu1Mu2 = mu1 * mu2;
+        double sigma1Sq = (float) s11 - mu1Sq;
+        double sigma2Sq = (float) s22 - mu2Sq;
+        double sigma12 = (float) s12 - mu1Mu2;
+        return (((2 * mu1Mu2) + c1) * ((2 * sigma12) + c2)) / ((mu1Sq + mu2Sq + c1) * (sigma1Sq + sigma2Sq + c2));
+    }
+
+    /**
+     * Computes the contrast and structure term of the SSIM of one pixel, the
+     * SSIM without its luminance term.
+     */
+    private static double contrastStructure(double s1, double s2, double s11, double s22, double s12, double c2) {
+        float mu1 = (float) s1;
+        float mu2 = (float) s2;
+        double sigma1Sq = (float) s11 - (double) (mu1 * mu1);
+        double sigma2Sq = (float) s22 - (double) (mu2 * mu2);
+        double sigma12 = (float) s12 - (double) (mu1 * mu2);
+        return ((2 * sigma12) + c2) / (sigma1Sq + sigma2Sq + c2);
+    }
+
+    /**
+     * Clamps a coordinate to the image, repeating the border pixels.
+     */
+    private static int clamp(int v, int size) {
+        return v < 0 ? 0 : (v >= size ? size - 1 : v);
+    }
+
+    /**
+     * Compares a range of levels of two pyramids, splitting it while it holds
+     * more than one. Every level takes its own scratch buffers.
+     */
+    private class Levels extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final float[][] pyramid1;
+        private final float[][] pyramid2;
+        private final int width;
+        private final int height;
+        private final double dynamicRange;
+        private final double[] terms;
+        private final int from;
+        private final int to;
+
+        Levels(float[][] pyramid1, float[][] pyramid2, int width, int height, double dynamicRange,
+                double[] terms, int from, int to) {
+            this.pyramid1 = pyramid1;
+            this.pyramid2 = pyramid2;
+            this.width = width;
+            this.height = height;
+            this.dynamicRange = dynamicRange;
+            this.terms = terms;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Levels(pyramid1, pyramid2, width, height, dynamicRange, terms, from, mid),
+                        new Levels(pyramid1, pyramid2, width, height, dynamicRange, terms, mid, to));
+                return;
+            }
+            SsimScratch scratch = SsimScratch.acquire();
+            try {
+                computeLevel(pyramid1, pyramid2, width, height, dynamicRange, terms, from, scratch);
+            } finally {
+                scratch.release();
+            }
+        }
+    }
+
+    /**
+     * Computes a range of strips, splitting it while it holds more than one.
+     */
+    private class Strips extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Sweep sweep;
+        private final int from;
+        private final int to;
+
+        Strips(Sweep sweep, int from, int to) {
+            this.sweep = sweep;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Strips(sweep, from, mid), new Strips(sweep, mid, to));
+                return;
+            }
+            sweep.computeStrip(from);
+        }
+    }
+}
@@ -5,6 +5,7 @@ package main.java.ssim;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.util.List;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -18,6 +19,160 @@ import ij.process.ImageProcessor;
  */
 public class SsimHelper {
 
+    /**
+     * Computes the mean SSIM index of two grey images, or of two colour
+     * images the mean of their red, green and blue indices, without any user
+     * interaction, so it can run with <code>java.awt.headless=true</code>.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @param options
+     *            Parameters of the index.
+     * @return Mean SSIM index.
+     * @throws SsimException
+     *             If the images differ in size or depth, are neither both
+     *             grey nor both colour images or the options are out of
+     *             range.
+     * @see SsimCalculator
+     */
+    public static double calculateSsim(BufferedImage coverImage, BufferedImage stegoImage, SsimOptions options)
+            throws SsimException {
+        return new SsimCalculator(options).calculateSsim(coverImage, stegoImage);
+    }
+
+    /**
+     * Computes the mean SSIM index of a cover and each of many images without
+     * any user interaction, e.g. to compare the stego images of several
+     * encodings of one cover. The window statistics of the cover are filtered
+     * once and the images are compared concurrently.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImages
+     *            The images to compare with the original.
+     * @param options
+     *            Parameters of the index.
+     * @return Mean SSIM index of every image, in the order of the list.
+     * @throws SsimException
+     *             If an image cannot be compared with the cover or the
+     *             options are out of range.
+     * @see SsimCalculator#calculateSsim(SsimReference, List)
+     */
+    public static double[] calculateSsim(BufferedImage coverImage, List<? extends BufferedImage> stegoImages,
+            SsimOptions options) throws SsimException {
+        SsimCalculator calculator = new SsimCalculator(options);
+        return calculator.calculateSsim(calculator.createReference(coverImage), stegoImages);
+    }
+
+    /**
+     * Computes the mean SSIM index of the red, green and blue channels of two
+     * colour images without any user interaction. The pixels of each image are
+     * unpacked once and the three channels are compared in a single sweep.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @param options
+     *            Parameters of the index.
+     * @return Index of every channel and of the whole image.
+     * @throws SsimException
+     *             If the images differ in size, are not colour images or the
+     *             options are out of range.
+     */
+    public static RgbSsim calculateRgbSsim(BufferedImage coverImage, BufferedImage stegoImage, SsimOptions options)
+            throws SsimException {
+        return new SsimCalculator(options).calculateRgbSsim(coverImage, stegoImage);
+    }
+
+    /**
+     * Computes the mean SSIM index of the luma (Y of YCbCr) of two colour
+     * images without any user interaction.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @param options
+     *            Parameters of the index.
+     * @return Mean SSIM index of the luma.
+     * @throws SsimException
+     *             If the images differ in size, are not colour images or the
+     *             options are out of range.
+     */
+    public static double calculateLumaSsim(BufferedImage coverImage, BufferedImage stegoImage, SsimOptions options)
+            throws SsimException {
+        return new SsimCalculator(options).calculateLumaSsim(coverImage, stegoImage);
+    }
+
+    /**
+     * Computes the multi-scale SSIM index (MS-SSIM) of two images without any
+     * user interaction. Grey images are compared by their samples, colour
+     * images by their luma.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @param options
+     *            Parameters of the index at every level.
+     * @return Multi-scale SSIM index.
+     * @throws SsimException
+     *             If the images cannot be compared or the options are out of
+     *             range.
+     */
+    public static double calculateMsSsim(BufferedImage coverImage, BufferedImage stegoImage, SsimOptions options)
+            throws SsimException {
+        return new SsimCalculator(options).calculateMsSsim(coverImage, stegoImage);
+    }
+
+    /**
+     * Compares two images without any user interaction, giving their SSIM
+     * index, PSNR, mean squared error, maximum absolute error and the number
+     * of changed pixels and bits in a single pass over their pixels.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @param options
+     *            Parameters of the SSIM index.
+     * @return Report of the differences.
+     * @throws SsimException
+     *             If the images cannot be compared or the options are out of
+     *             range.
+     * @see SsimCalculator#calculateQualityReport(BufferedImage, BufferedImage)
+     */
+    public static QualityReport calculateQualityReport(BufferedImage coverImage, BufferedImage stegoImage,
+            SsimOptions options) throws SsimException {
+        return new SsimCalculator(options).calculateQualityReport(coverImage, stegoImage);
+    }
+
+    /**
+     * Computes the mean SSIM index of two images without any user interaction,
+     * holding only a tile of rows of both at once. Grey images are compared by
+     * their samples, colour images give the mean of their red, green and blue
+     * indices.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @param options
+     *            Parameters of the index.
+     * @return Mean SSIM index.
+     * @throws SsimException
+     *             If the images cannot be compared or the options are out of
+     *             range.
+     * @see SsimCalculator#calculateTiledSsim(BufferedImage, BufferedImage)
+     */
+    public static double calculateTiledSsim(BufferedImage coverImage, BufferedImage stegoImage,
+            SsimOptions options) throws SsimException {
+        return new SsimCalculator(options).calculateTiledSsim(coverImage, stegoImage);
+    }
+
     /**
      * @param coverImage
      * @param stegoImage
@@ -25,16 +180,36 @@ public class SsimHelper {
      * @throws SsimException
      */
     public static String calculateSsim(BufferedImage coverImage, BufferedImage stegoImage) throws SsimException {
+        return calculateSsim(coverImage, stegoImage, coverImage.getHeight());
+    }
+
+    /**
+     * Asks for the filter parameters and computes the SSIM index of a cover
+     * and a stego image which equals it from the given row on. Only the
+     * windows reaching the changed rows are computed, unless the SSIM map is
+     * shown.
+     * <p>
+     * The index is the one of the headless entry points with the same
+     * {@link SsimOptions}: both images are downsampled by averaging blocks of
+     * pixels, and colour images give the mean of their red, green and blue
+     * indices. The multi-scale index is computed on the images as they are.
+     *
+     * @param coverImage
+     *            The original image.
+     * @param stegoImage
+     *            The image to compare with the original.
+     * @param changedRows
+     *            Number of rows, counting from the top, in which the stego
+     *            image may differ from the cover.
+     * @return The SSIM index.
+     * @throws SsimException
+     */
+    public static String calculateSsim(BufferedImage coverImage, BufferedImage stegoImage, int changedRows)
+            throws SsimException {
         
         double ssimIndex = 0.0;
         
-        if (coverImage.getHeight() != stegoImage.getHeight()) {
-            throw new SsimException("The images must be the same height!");
-        }
-        
-        if (coverImage.getWidth() != stegoImage.getWidth()) {
-            throw new SsimException("The images must be the same width!");
-        }
+        SsimCalculator.checkSameShape(coverImage, stegoImage);
         
         int pixelSize = coverImage.getColorModel().getPixelSize();
         if (pixelSize != stegoImage.getColorModel().getPixelSize()) {
@@ -46,11 +221,7 @@ public class SsimHelper {
         // }
         
         String title_1, title_2;
-        int pointer, filter_length, image_height, image_width, image_dimension, bits_per_pixel_1, bits_per_pixel_2, a,
-                b, c;
-        float filter_weights[];
-        double[] ssim_map;
-        double ssim_index;
+        int pointer, filter_length, image_height, image_width, a;
         
         double sigma_gauss = 1.5;
         int filter_width = 11;
@@ -67,6 +238,7 @@ public class SsimHelper {
         boolean show_downsampled_images = false;
         boolean show_gaussian_filter = false;
         boolean show_ssim_map = false;
+        boolean multi_scale = false;
         
         while (!out) {
             out = true;
@@ -81,6 +253,7 @@ public class SsimHelper {
             gd.addCheckbox("Show downsampled images", show_downsampled_images);
             gd.addCheckbox("Show SSIM map", show_ssim_map);
             gd.addCheckbox("Show gaussian filter", show_gaussian_filter);
+            gd.addCheckbox("Multi-scale (MS-SSIM)", multi_scale);
             gd.showDialog();
             if (!gd.wasCanceled()) {
                 sigma_gauss = gd.getNextNumber();
@@ -93,6 +266,7 @@ public class SsimHelper {
                 show_downsampled_images = gd.getNextBoolean();
                 show_ssim_map = gd.getNextBoolean();
                 show_gaussian_filter = gd.getNextBoolean();
+                multi_scale = gd.getNextBoolean();
                 double d;
                 a = filter_width / 2;
                 d = filter_width - (a * 2);
@@ -119,14 +293,21 @@ public class SsimHelper {
                     IJ.error("Minimun value of Viewing scale must be 1");
                     out = false;
                 }
+                if (multi_scale && (show_ssim_map || show_downsampled_images)) {
+                    IJ.error("The SSIM map and the downsampled images are not shown for MS-SSIM");
+                    out = false;
+                }
                 gd.dispose();
             }
         }
         
-        double C1 = (Math.pow(2, pixelSize) - 1) * K1;
-        C1 = C1 * C1;
-        double C2 = (Math.pow(2, pixelSize) - 1) * K2;
-        C2 = C2 * C2;
+        SsimOptions options = new SsimOptions();
+        options.setSigma(sigma_gauss);
+        options.setGaussianWindow(gaussian_window);
+        options.setFilterWidth(filter_width);
+        options.setK1(K1);
+        options.setK2(K2);
+        options.setDownsampling((int) downsampled);
         
         //
         // NOW, WE CREATE THE FILTER, GAUSSIAN OR MEDIA FILTER, ACCORDING TO THE
@@ -180,135 +361,78 @@ public class SsimHelper {
         //
         // MAIN ALGORITHM
         //
-        int coverImageWidth = coverImage.getWidth();
-        int coverImageHeight = coverImage.getHeight();
-        int stegoImageWidth = stegoImage.getWidth();
-        int stegoImageHeight = stegoImage.getHeight();
-        int imageDimension = coverImageHeight * coverImageWidth;
-        ImagePlus coverImagePlus = new ImagePlus("Cover Image", coverImage);
-        ImagePlus stegoImagePlus = new ImagePlus("Stego Image", stegoImage);
-        ImageProcessor image_1_original_p = coverImagePlus.getProcessor();
-        ImageProcessor image_2_original_p = stegoImagePlus.getProcessor();
-        
-        image_width = image_1_original_p.getWidth();
-        image_width = (int) (image_width / downsampled);
-        image_1_original_p.setInterpolate(true);
-        image_2_original_p.setInterpolate(true);
-        ImageProcessor image_1_p = image_1_original_p.resize(image_width);
-        ImageProcessor image_2_p = image_2_original_p.resize(image_width);
-        
-        image_height = image_1_p.getHeight();
-        image_width = image_1_p.getWidth();
-        imageDimension = image_width * image_height;
-        
-        ImageProcessor mu1_ip = new FloatProcessor(image_width, image_height);
-        ImageProcessor mu2_ip = new FloatProcessor(image_width, image_height);
-        float[] array_mu1_ip = (float[]) mu1_ip.getPixels();
-        float[] array_mu2_ip = (float[]) mu2_ip.getPixels();
-        
-        float[] array_mu1_ip_copy = new float[imageDimension];
-        float[] array_mu2_ip_copy = new float[imageDimension];
-        
-        bits_per_pixel_1 = pixelSize;
-        a = b = 0;
-        for (pointer = 0; pointer < imageDimension; pointer++) {
-            
-            if (bits_per_pixel_1 == 8) {
-                a = (0xff & image_1_p.get(pointer));
-                b = (0xff & image_2_p.get(pointer));
-            }
-            if (bits_per_pixel_1 == 16) {
-                a = (0xffff & image_1_p.get(pointer));
-                b = (0xffff & image_2_p.get(pointer));
-            }
-            if (bits_per_pixel_1 == 32) {
-                a = (image_1_p.get(pointer));
-                b = (image_2_p.get(pointer));
-            }
-            array_mu1_ip[pointer] = array_mu1_ip_copy[pointer] = a; // Float.intBitsToFloat(a);
-            array_mu2_ip[pointer] = array_mu2_ip_copy[pointer] = b; // Float.intBitsToFloat(b);
-        }
-        mu1_ip.convolve(window_weights, filter_width, filter_width);
-        mu2_ip.convolve(window_weights, filter_width, filter_width);
-        
-        double[] mu1_sq = new double[imageDimension];
-        double[] mu2_sq = new double[imageDimension];
-        double[] mu1_mu2 = new double[imageDimension];
         
-        for (pointer = 0; pointer < imageDimension; pointer++) {
-            mu1_sq[pointer] = array_mu1_ip[pointer] * array_mu1_ip[pointer];
-            mu2_sq[pointer] = array_mu2_ip[pointer] * array_mu2_ip[pointer];
-            mu1_mu2[pointer] = array_mu1_ip[pointer] * array_mu2_ip[pointer];
-        }
-        
-        double[] sigma1_sq = new double[imageDimension];
-        double[] sigma2_sq = new double[imageDimension];
-        double[] sigma12 = new double[imageDimension];
-        
-        for (pointer = 0; pointer < imageDimension; pointer++) {
-            
-            sigma1_sq[pointer] = array_mu1_ip_copy[pointer] * array_mu1_ip_copy[pointer];
-            sigma2_sq[pointer] = array_mu2_ip_copy[pointer] * array_mu2_ip_copy[pointer];
-            sigma12[pointer] = array_mu1_ip_copy[pointer] * array_mu2_ip_copy[pointer];
-        }
         //
-        // THERE IS A METHOD IN IMAGEJ THAT CONVOLVES ANY ARRAY, BUT IT ONLY
-        // WORKS WITH IMAGE PROCESSORS. THIS IS THE REASON BECAUSE I CREATE THE
-        // FOLLOWING PROCESSORS
+        // THE MULTI-SCALE INDEX REDUCES BOTH IMAGES INTO PYRAMIDS ITSELF, SO
+        // THEY ARE COMPARED AT THEIR FULL SIZE
         //
-        ImageProcessor soporte_1_ip = new FloatProcessor(image_width, image_height);
-        ImageProcessor soporte_2_ip = new FloatProcessor(image_width, image_height);
-        ImageProcessor soporte_3_ip = new FloatProcessor(image_width, image_height);
-        float[] array_soporte_1 = (float[]) soporte_1_ip.getPixels();
-        float[] array_soporte_2 = (float[]) soporte_2_ip.getPixels();
-        float[] array_soporte_3 = (float[]) soporte_3_ip.getPixels();
-        
-        for (pointer = 0; pointer < imageDimension; pointer++) {
-            array_soporte_1[pointer] = (float) sigma1_sq[pointer];
-            array_soporte_2[pointer] = (float) sigma2_sq[pointer];
-            array_soporte_3[pointer] = (float) sigma12[pointer];
+        if (multi_scale) {
+            options.setDownsampling(1);
+            ssimIndex = calculateMsSsim(coverImage, stegoImage, options);
+            return Double.toString(ssimIndex);
         }
-        soporte_1_ip.convolve(window_weights, filter_width, filter_width);
-        soporte_2_ip.convolve(window_weights, filter_width, filter_width);
-        soporte_3_ip.convolve(window_weights, filter_width, filter_width);
         
-        for (pointer = 0; pointer < imageDimension; pointer++) {
-            sigma1_sq[pointer] = array_soporte_1[pointer] - mu1_sq[pointer];
-            sigma2_sq[pointer] = array_soporte_2[pointer] - mu2_sq[pointer];
-            sigma12[pointer] = array_soporte_3[pointer] - mu1_mu2[pointer];
-        }
-        ssim_map = new double[imageDimension];
-        double suma = 0;
-        for (pointer = 0; pointer < imageDimension; pointer++) {
-            ssim_map[pointer] = (((2 * mu1_mu2[pointer]) + C1) * ((2 * sigma12[pointer]) + C2))
-                    / ((mu1_sq[pointer] + mu2_sq[pointer] + C1)
-                            * (sigma1_sq[pointer] + sigma2_sq[pointer] + C2));
-            suma = suma + ssim_map[pointer];
+        //
+        // BOTH IMAGES ARE DOWNSAMPLED LIKE BY THE HEADLESS ENTRY POINTS, EVERY
+        // BLOCK OF PIXELS AVERAGED INTO ONE. COLOUR IMAGES ARE COMPARED CHANNEL
+        // BY CHANNEL, NOT AS PACKED PIXELS
+        //
+        SsimCalculator calculator = new SsimCalculator(options);
+        image_width = coverImage.getWidth() / (int) downsampled;
+        image_height = coverImage.getHeight() / (int) downsampled;
+        float[] ssim_map = show_ssim_map ? new float[image_width * image_height] : null;
+        if (!show_ssim_map && changedRows < coverImage.getHeight()) {
+            ssimIndex = calculator.calculateSsim(calculator.createReference(coverImage), stegoImage, changedRows);
+        } else {
+            ssimIndex = calculator.calculateSsim(coverImage, stegoImage, ssim_map);
         }
-        
-        ssimIndex = suma / imageDimension;
         String message_1 = " ";
         if (show_ssim_map) {
-            ImageProcessor ssim_map_ip = new FloatProcessor(image_width, image_height, ssim_map);
+            ImageProcessor ssim_map_ip = new FloatProcessor(image_width, image_height, ssim_map, null);
             message_1 = "SSIM Index:   " + ssimIndex;
             ImagePlus ssim_map_imp = new ImagePlus(message_1, ssim_map_ip);
             ssim_map_imp.show();
             ssim_map_imp.updateAndDraw();
         }
         if (show_downsampled_images) {
-            title_1 = coverImagePlus.getTitle();
-            title_2 = stegoImagePlus.getTitle();
-            title_1 = title_1 + " down scaled " + downsampled + " times";
-            title_2 = title_2 + " down scaled " + downsampled + " times";
-            ImagePlus image_1_final_imp = new ImagePlus(title_1, image_1_p);
-            image_1_final_imp.show();
-            image_1_final_imp.updateAndDraw();
-            ImagePlus image_2_final_imp = new ImagePlus(title_2, image_2_p);
-            image_2_final_imp.show();
-            image_2_final_imp.updateAndDraw();
+            title_1 = "Cover Image down scaled " + downsampled + " times";
+            title_2 = "Stego Image down scaled " + downsampled + " times";
+            showPlanes(title_1, calculator.downsample(coverImage), image_width, image_height);
+            showPlanes(title_2, calculator.downsample(stegoImage), image_width, image_height);
         }
         
-        System.out.println(" ++++++++++++++++++++ SSIM index: " + ssimIndex);
         return Double.toString(ssimIndex);
     }
+
+    /**
+     * Shows downsampled planes in an ImageJ window, a grey plane as it is and
+     * red, green and blue planes as a colour image.
+     *
+     * @param title
+     *            Title of the window.
+     * @param planes
+     *            Planes given by {@link SsimCalculator#downsample(BufferedImage)}.
+     * @param width
+     *            Number of columns of the planes.
+     * @param height
+     *            Number of rows of the planes.
+     */
+    private static void showPlanes(String title, float[][] planes, int width, int height) {
+        ImagePlus imagePlus;
+        if (planes.length == 1) {
+            imagePlus = new ImagePlus(title, new FloatProcessor(width, height, planes[0], null));
+        } else {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int i = y * width + x;
+                    image.setRGB(x, y, Math.round(planes[0][i]) << 16 | Math.round(planes[1][i]) << 8
+                            | Math.round(planes[2][i]));
+                }
+            }
+            imagePlus = new ImagePlus(title, image);
+        }
+        imagePlus.show();
+        imagePlus.updateAndDraw();
+    }
 }
@@ -0,0 +1,122 @@
+package main.java.ssim;
+
+/**
+ * Parameters of the SSIM index, the headless counterpart of the filter
+ * parameters dialog of {@link SsimHelper#calculateSsim(java.awt.image.BufferedImage, java.awt.image.BufferedImage)}.
+ * The defaults are the ones proposed by the dialog, except for the
+ * downsampling factor, which defaults to 1.
+ */
+public class SsimOptions {
+
+    /** Standard deviation of the gaussian window. */
+    private double sigma = 1.5;
+
+    /** Width and height of the window, odd. */
+    private int filterWidth = 11;
+
+    /** Gaussian window if true, otherwise all pixels have the same weight. */
+    private boolean gaussianWindow = true;
+
+    private double k1 = 0.01;
+
+    private double k2 = 0.03;
+
+    /** Factor by which both images are downsampled before comparing them. */
+    private int downsampling = 1;
+
+    public double getSigma() {
+        return sigma;
+    }
+
+    public void setSigma(double sigma) {
+        this.sigma = sigma;
+    }
+
+    public int getFilterWidth() {
+        return filterWidth;
+    }
+
+    public void setFilterWidth(int filterWidth) {
+        this.filterWidth = filterWidth;
+    }
+
+    public boolean isGaussianWindow() {
+        return gaussianWindow;
+    }
+
+    public void setGaussianWindow(boolean gaussianWindow) {
+        this.gaussianWindow = gaussianWindow;
+    }
+
+    public double getK1() {
+        return k1;
+    }
+
+    public void setK1(double k1) {
+        this.k1 = k1;
+    }
+
+    public double getK2() {
+        return k2;
+    }
+
+    public void setK2(double k2) {
+        this.k2 = k2;
+    }
+
+    public int getDownsampling() {
+        return downsampling;
+    }
+
+    /**
+     * Sets the factor by which both images are downsampled: every F by F block
+     * of pixels is averaged into one pixel, as proposed by Zhou Wang for
+     * images viewed from 3 to 5 times their height. The rows and columns left
+     * over by the last whole block are ignored. The filter parameters dialog
+     * reduces the images the same way for its view scale.
+     *
+     * @param downsampling
+     *            Factor F, 1 to compare the images as they are.
+     */
+    public void setDownsampling(int downsampling) {
+        this.downsampling = downsampling;
+    }
+
+    /**
+     * Sets the downsampling factor proposed by Zhou Wang for the given image
+     * height, <code>max(1, round(height / 256))</code>.
+     *
+     * @param height
+     *            Height of the images in pixels.
+     */
+    public void setViewingDistanceDownsampling(int height) {
+        this.downsampling = Math.max(1, Math.round(height / 256f));
+    }
+
+    /**
+     * Gives the 1D weights of the window described by these options.
+     *
+     * @return Weights summing to 1.
+     */
+    public double[] getWindow() {
+        return gaussianWindow ? SsimEngine.gaussianWindow(filterWidth, sigma) : SsimEngine.uniformWindow(filterWidth);
+    }
+
+    /**
+     * Checks the options, like the filter parameters dialog does.
+     *
+     * @throws SsimException
+     *             If an option is out of range.
+     */
+    public void validate() throws SsimException {
+        if (filterWidth < 1 || filterWidth % 2 == 0) {
+            throw new SsimException("Filter width and heigth must be odd");
+        }
+        if (gaussianWindow && sigma <= 0) {
+            throw new SsimException("Sigma must be greater than 0");
+        }
+        if (downsampling < 1) {
+            throw new SsimException("Minimun value of Viewing scale must be 1");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package main.java.ssim;
+
+/**
+ * Cover image of SSIM comparisons with images that differ from it in their top
+ * rows only, such as stego images whose message does not fill the whole cover.
+ * <p>
+ * The window means and second moments of the cover are computed in blocks of
+ * rows the first time a comparison needs them and kept for later comparisons,
+ * so comparing many images with the same cover filters the cover once, and
+ * only as far down as the images differ from it. Every comparison then filters
+ * three of the five window statistics. A reference may be shared between
+ * threads.
+ */
+public final class SsimReference {
+
+    /** Engine which created the reference; its window filtered the blocks. */
+    final SsimEngine engine;
+
+    /** Planes of the cover, row by row. */
+    final float[][] channels;
+
+    final int width;
+
+    final int height;
+
+    final double dynamicRange;
+
+    /** Width and height of the image the planes were read from. */
+    int imageWidth;
+
+    int imageHeight;
+
+    /** Number of rows of a block, those of a strip of the engine. */
+    private final int rows;
+
+    /** Filtered blocks of rows, <code>null</code> until first needed. */
+    private final float[][] blocks;
+
+    private final Object[] locks;
+
+    SsimReference(SsimEngine engine, float[][] channels, int width, int height, double dynamicRange) {
+        this.engine = engine;
+        this.channels = channels;
+        this.width = width;
+        this.height = height;
+        this.dynamicRange = dynamicRange;
+        this.imageWidth = width;
+        this.imageHeight = height;
+        this.rows = engine.getStripRows();
+        int count = (height + rows - 1) / rows;
+        blocks = new float[count][];
+        locks = new Object[count];
+        for (int b = 0; b < count; b++) {
+            locks[b] = new Object();
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gives the number of channels of the cover, 1 for grey and 3 for colour
+     * images.
+     *
+     * @return Number of channels.
+     */
+    public int getChannelCount() {
+        return channels.length;
+    }
+
+    /**
+     * Gives the number of rows of a block.
+     */
+    int blockRows(int index) {
+        return Math.min(rows, height - index * rows);
+    }
+
+    /**
+     * Gives a block of filtered rows, filtering it if no comparison has needed
+     * it so far.
+     *
+     * @param index
+     *            Index of the block, the first row divided by the number of
+     *            rows of a block.
+     * @return Window means and second moments of the rows of every channel.
+     */
+    float[] block(int index) {
+        synchronized (locks[index]) {
+            if (blocks[index] == null) {
+                blocks[index] = engine.filterBlock(this, index);
+            }
+            return blocks[index];
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package main.java.ssim;
+
+import java.util.Arrays;
+
+/**
+ * Scratch buffers of one thread, reused by all SSIM computations of that
+ * thread. Buffers only grow, so once they have reached the size of the largest
+ * images compared no more memory is allocated. Planes and pyramid levels larger
+ * than {@link #MAX_KEPT} samples are dropped when a comparison ends, so a
+ * thread that once compared a huge image does not keep its planes.
+ * <p>
+ * The buffers of one strip ({@link #source(int)}, {@link #filtered(int)},
+ * {@link #columns(int)}) may be taken at any time as a strip is computed
+ * without waiting for other tasks. The buffers of a whole comparison (planes,
+ * pyramid levels and sums) are held while strips run on a pool, and a thread
+ * waiting for them may pick up another comparison, so they are handed out
+ * through {@link #acquire()}, which gives a new instance if the ones of the
+ * thread are in use.
+ */
+final class SsimScratch {
+
+    private static final ThreadLocal<SsimScratch> LOCAL = new ThreadLocal<SsimScratch>() {
+        @Override
+        protected SsimScratch initialValue() {
+            return new SsimScratch();
+        }
+    };
+
+    /** Largest number of samples of a plane or level kept between comparisons. */
+    static final int MAX_KEPT = 1 << 22;
+
+    /** Tells whether the comparison buffers are held. */
+    private boolean busy;
+
+    private float[] source = new float[0];
+
+    private float[] filtered = new float[0];
+
+    private double[] sums = new double[0];
+
+    /** Running column sums of a box window. */
+    private double[] columns = new double[0];
+
+    /** Planes of the first and second image, per channel. */
+    private final float[][] planes1 = new float[3][0];
+
+    private final float[][] planes2 = new float[3][0];
+
+    /** Levels of the pyramids of the first and second image. */
+    private float[][] levels1 = new float[0][];
+
+    private float[][] levels2 = new float[0][];
+
+    /** One row of packed pixels or samples of the first and second image. */
+    private int[] row1 = new int[0];
+
+    private int[] row2 = new int[0];
+
+    /** Holders of the planes of single channel comparisons. */
+    final float[][] single1 = new float[1][];
+
+    final float[][] single2 = new float[1][];
+
+    /** Holders of the planes of multi-channel comparisons. */
+    final float[][] channels1 = new float[3][];
+
+    final float[][] channels2 = new float[3][];
+
+    private SsimScratch() {
+    }
+
+    /**
+     * Gives the scratch buffers of the calling thread for the work of one
+     * strip.
+     */
+    static SsimScratch local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Takes the scratch buffers of the calling thread for a whole comparison,
+     * or new ones if they are in use. They must be given back through
+     * {@link #release()}.
+     */
+    static SsimScratch acquire() {
+        SsimScratch scratch = LOCAL.get();
+        if (scratch.busy) {
+            scratch = new SsimScratch();
+        }
+        scratch.busy = true;
+        return scratch;
+    }
+
+    /**
+     * Gives back buffers taken by {@link #acquire()}.
+     */
+    void release() {
+        single1[0] = null;
+        single2[0] = null;
+        for (int c = 0; c < channels1.length; c++) {
+            channels1[c] = null;
+            channels2[c] = null;
+        }
+        for (int c = 0; c < planes1.length; c++) {
+            planes1[c] = trim(planes1[c]);
+            planes2[c] = trim(planes2[c]);
+        }
+        for (int level = 0; level < levels1.length; level++) {
+            levels1[level] = levels1[level] == null ? null : trim(levels1[level]);
+        }
+        for (int level = 0; level < levels2.length; level++) {
+            levels2[level] = levels2[level] == null ? null : trim(levels2[level]);
+        }
+        busy = false;
+    }
+
+    /**
+     * Gives the buffer, or an empty one if it is too large to be kept.
+     */
+    private static float[] trim(float[] buffer) {
+        return buffer.length > MAX_KEPT ? new float[0] : buffer;
+    }
+
+    float[] source(int length) {
+        if (source.length < length) {
+            source = new float[length];
+        }
+        return source;
+    }
+
+    float[] filtered(int length) {
+        if (filtered.length < length) {
+            filtered = new float[length];
+        }
+        return filtered;
+    }
+
+    double[] columns(int length) {
+        if (columns.length < length) {
+            columns = new double[length];
+        }
+        return columns;
+    }
+
+    double[] sums(int length) {
+        if (sums.length < length) {
+            sums = new double[length];
+        }
+        return sums;
+    }
+
+    float[] plane1(int channel, int length) {
+        if (planes1[channel].length < length) {
+            planes1[channel] = new float[length];
+        }
+        return planes1[channel];
+    }
+
+    float[] plane2(int channel, int length) {
+        if (planes2[channel].length < length) {
+            planes2[channel] = new float[length];
+        }
+        return planes2[channel];
+    }
+
+    float[] level1(int level, int length) {
+        if (levels1.length <= level) {
+            levels1 = Arrays.copyOf(levels1, level + 1);
+        }
+        if (levels1[level] == null || levels1[level].length < length) {
+            levels1[level] = new float[length];
+        }
+        return levels1[level];
+    }
+
+    float[] level2(int level, int length) {
+        if (levels2.length <= level) {
+            levels2 = Arrays.copyOf(levels2, level + 1);
+        }
+        if (levels2[level] == null || levels2[level].length < length) {
+            levels2[level] = new float[length];
+        }
+        return levels2[level];
+    }
+
+    int[] row1(int length) {
+        if (row1.length < length) {
+            row1 = new int[length];
+        }
+        return row1;
+    }
+
+    int[] row2(int length) {
+        if (row2.length < length) {
+            row2 = new int[length];
+        }
+        return row2;
+    }
+}
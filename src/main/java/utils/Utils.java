@@ -26,8 +26,10 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import main.java.gui.ImageType;
+import main.java.ssim.QualityReport;
 import main.java.ssim.SsimException;
 import main.java.ssim.SsimHelper;
+import main.java.ssim.SsimOptions;
 
 /**
  * Utils class.
@@ -333,6 +335,19 @@ public class Utils {
     
     // TODO move this
     public static String calculateSsim(BufferedImage coverImage, BufferedImage stegoImage) {
+        return calculateSsim(coverImage, stegoImage, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Calculates the SSIM index of a cover and a stego image which differs
+     * from it in the given number of top rows only.
+     *
+     * @param coverImage
+     * @param stegoImage
+     * @param changedRows
+     * @return
+     */
+    public static String calculateSsim(BufferedImage coverImage, BufferedImage stegoImage, int changedRows) {
         String result = "no result";
         
         if ((coverImage == null) || (stegoImage == null)) {
@@ -340,7 +355,7 @@ public class Utils {
         }
 
         try {
-            result = SsimHelper.calculateSsim(coverImage, stegoImage);
+            result = SsimHelper.calculateSsim(coverImage, stegoImage, changedRows);
         } catch (SsimException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -348,4 +363,26 @@ public class Utils {
         
         return result;
     }
+
+    /**
+     * Compares a cover and a stego image with the default SSIM options,
+     * giving their SSIM index, PSNR, MSE and changed pixels and bits.
+     *
+     * @param coverImage
+     * @param stegoImage
+     * @return The report, or <code>null</code> if the images are missing or
+     *         cannot be compared.
+     */
+    public static QualityReport calculateQualityReport(BufferedImage coverImage, BufferedImage stegoImage) {
+        if ((coverImage == null) || (stegoImage == null)) {
+            return null;
+        }
+
+        try {
+            return SsimHelper.calculateQualityReport(coverImage, stegoImage, new SsimOptions());
+        } catch (SsimException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 }